@@ -0,0 +1,192 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.logging.Logger;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Top level Jersey HTTP methods for the .../admin URL, restricted to the
+ * Administrator role.
+ */
+@Path("/admin/")
+public class AdminResource {
+
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private SecurityContext securityContext;
+
+    private Logger audit = Logger.getLogger(this.getClass().getPackage().getName() + ".audit");
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** Creates a new instance of AdminResource */
+    public AdminResource() {
+    }
+
+    /**
+     * GET method for retrieving the service statistics as
+     * <tt>name=value</tt> lines.
+     *
+     * @return HTTP Response
+     */
+    @GET
+    @Path("statistics")
+    @Produces("text/plain")
+    public Response statistics() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        StringBuilder s = new StringBuilder();
+        s.append("queryPlanCache.size=").append(LogQueryPlanCache.size()).append('\n');
+        s.append("queryPlanCache.hits=").append(LogQueryPlanCache.getHits()).append('\n');
+        s.append("queryPlanCache.misses=").append(LogQueryPlanCache.getMisses()).append('\n');
+        s.append("nameCache.size=").append(NameCache.size()).append('\n');
+        s.append("nameCache.hits=").append(NameCache.getHits()).append('\n');
+        s.append("nameCache.misses=").append(NameCache.getMisses()).append('\n');
+        appendPool(s, "jcr.readPool", JCRUtil.getReadPool());
+        appendPool(s, "jcr.writePool", JCRUtil.getWritePool());
+        s.append("thumbnails.pending=").append(ThumbnailManager.getPending()).append('\n');
+        s.append("thumbnails.running=").append(ThumbnailManager.getRunning()).append('\n');
+        s.append("thumbnails.completed=").append(ThumbnailManager.getCompleted()).append('\n');
+        s.append("thumbnails.failed=").append(ThumbnailManager.getFailed()).append('\n');
+        s.append("attachmentLayout.migrating=").append(AttachmentLayout.isMigrating()).append('\n');
+        s.append("attachmentLayout.migrated=").append(AttachmentLayout.getMigrated()).append('\n');
+        s.append("attachmentStore.name=").append(AttachmentStores.getName()).append('\n');
+        s.append("attachmentStore.copying=").append(AttachmentStores.isCopying()).append('\n');
+        s.append("attachmentStore.copied=").append(AttachmentStores.getCopied()).append('\n');
+        s.append("attachmentStore.sweeping=").append(AttachmentStores.isSweeping()).append('\n');
+        s.append("attachmentStore.swept=").append(AttachmentStores.getSwept()).append('\n');
+        s.append("attachmentMetadata.complete=").append(AttachmentMetadata.isComplete()).append('\n');
+        s.append("attachmentMetadata.backfilling=").append(AttachmentMetadata.isBackfilling()).append('\n');
+        s.append("attachmentMetadata.backfilled=").append(AttachmentMetadata.getBackfilled()).append('\n');
+        s.append("searchIndex.complete=").append(LogSearchIndex.isComplete()).append('\n');
+        s.append("searchIndex.rebuilding=").append(LogSearchIndex.isRebuilding()).append('\n');
+        s.append("searchIndex.documents=").append(LogSearchIndex.numDocs()).append('\n');
+        Response r = Response.ok(s.toString()).build();
+        log.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
+        return r;
+    }
+
+    private static void appendPool(StringBuilder s, String name, JCRSessionPool pool) {
+        if (pool == null) {
+            return;
+        }
+        s.append(name).append(".size=").append(pool.getSize()).append('\n');
+        s.append(name).append(".inUse=").append(pool.getInUse()).append('\n');
+        s.append(name).append(".checkouts=").append(pool.getCheckouts()).append('\n');
+        s.append(name).append(".waits=").append(pool.getWaits()).append('\n');
+        s.append(name).append(".waitTimeMillis=").append(pool.getWaitTime()).append('\n');
+        s.append(name).append(".maxWaitTimeMillis=").append(pool.getMaxWaitTime()).append('\n');
+        s.append(name).append(".timeouts=").append(pool.getTimeouts()).append('\n');
+    }
+
+    /**
+     * POST method for rebuilding the log full-text index in the background.
+     *
+     * @return HTTP Response, 202 when started, 409 if a rebuild is running
+     */
+    @POST
+    @Path("index/rebuild")
+    public Response rebuildIndex() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        Response r;
+        if (LogSearchIndex.rebuild()) {
+            r = Response.status(Response.Status.ACCEPTED).build();
+        } else {
+            r = Response.status(Response.Status.CONFLICT).build();
+        }
+        audit.info(user + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+        return r;
+    }
+
+    /**
+     * POST method for moving the attachment folders of the flat repository
+     * layout to the sharded one, in throttled batches in the background.
+     *
+     * @return HTTP Response, 202 when started, 409 if a migration is running
+     */
+    @POST
+    @Path("attachments/migrate")
+    public Response migrateAttachments() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        Response r;
+        if (AttachmentLayout.migrate()) {
+            r = Response.status(Response.Status.ACCEPTED).build();
+        } else {
+            r = Response.status(Response.Status.CONFLICT).build();
+        }
+        audit.info(user + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+        return r;
+    }
+
+    /**
+     * POST method for copying the attachments of the JCR store to the
+     * filesystem store, in throttled rounds in the background.
+     *
+     * @return HTTP Response, 202 when started, 409 if a copy is running or
+     * no filesystem store is configured
+     */
+    @POST
+    @Path("attachments/copy")
+    public Response copyAttachments() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        Response r;
+        if (AttachmentStores.copy()) {
+            r = Response.status(Response.Status.ACCEPTED).build();
+        } else {
+            r = Response.status(Response.Status.CONFLICT).build();
+        }
+        audit.info(user + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+        return r;
+    }
+
+    /**
+     * POST method for deleting the blobs of the filesystem store that no
+     * attachment uses any more, in the background.
+     *
+     * @return HTTP Response, 202 when started, 409 if a sweep is running or
+     * no filesystem store is configured
+     */
+    @POST
+    @Path("attachments/sweep")
+    public Response sweepAttachments() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        Response r;
+        if (AttachmentStores.sweep()) {
+            r = Response.status(Response.Status.ACCEPTED).build();
+        } else {
+            r = Response.status(Response.Status.CONFLICT).build();
+        }
+        audit.info(user + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+        return r;
+    }
+
+    /**
+     * POST method for resuming the backfill of the attachments table, in
+     * throttled rounds in the background.
+     *
+     * @return HTTP Response, 202 when started, 409 if a backfill is running
+     * or complete
+     */
+    @POST
+    @Path("attachments/backfill")
+    public Response backfillAttachments() {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        Response r;
+        if (AttachmentMetadata.backfill()) {
+            r = Response.status(Response.Status.ACCEPTED).build();
+        } else {
+            r = Response.status(Response.Status.CONFLICT).build();
+        }
+        audit.info(user + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+        return r;
+    }
+}
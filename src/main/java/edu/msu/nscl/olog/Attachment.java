@@ -5,6 +5,7 @@
 package edu.msu.nscl.olog;
 
 import java.io.InputStream;
+import java.util.Date;
 
 /**
  *
@@ -20,6 +21,9 @@ public class Attachment {
         private String encoding;
         private String fileName;
         private Long fileSize;
+        private AttachmentContent storedContent;
+        private String contentIdentity;
+        private Date lastModified;
         
         public void setContent(InputStream content){
             this.content = content;
@@ -60,4 +64,36 @@ public class Attachment {
         public String getEncoding(){
             return encoding;
         }  
+
+        /**
+         * @param storedContent stored content, read by downloads in place of
+         * the content stream; the reader disposes it
+         */
+        public void setStoredContent(AttachmentContent storedContent){
+            this.storedContent = storedContent;
+        }
+        
+        public AttachmentContent getStoredContent(){
+            return storedContent;
+        }
+        
+        /**
+         * @param contentIdentity identity of the stored content, equal for
+         * equal content
+         */
+        public void setContentIdentity(String contentIdentity){
+            this.contentIdentity = contentIdentity;
+        }
+        
+        public String getContentIdentity(){
+            return contentIdentity;
+        }
+        
+        public void setLastModified(Date lastModified){
+            this.lastModified = lastModified;
+        }
+        
+        public Date getLastModified(){
+            return lastModified;
+        }
 }
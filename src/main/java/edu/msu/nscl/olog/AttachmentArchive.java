@@ -0,0 +1,109 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.ws.rs.core.StreamingOutput;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Zip archive of the attachments of one or more log entries, written as it
+ * is read from the attachment store, one file at a time.
+ *
+ * Files whose content type is already compressed are written at deflate
+ * level 0, which copies them in stored blocks instead of compressing them
+ * again; a STORED entry would need its CRC before its content, so a second
+ * read of every file.
+ */
+public class AttachmentArchive implements StreamingOutput {
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<String>(Arrays.asList(
+            "image/jpeg", "image/png", "image/gif", "application/pdf",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed"));
+    private static final String[] COMPRESSED_PREFIXES = {"audio/", "video/", "application/vnd.openxmlformats-"};
+    private final Map<Long, Collection<XmlAttachment>> attachments;
+    private final boolean entryFolders;
+
+    /**
+     * @param attachments files keyed by entry id, in archive order
+     * @param entryFolders true to put the files of each entry under a folder
+     * named by its id
+     */
+    public AttachmentArchive(Map<Long, Collection<XmlAttachment>> attachments, boolean entryFolders) {
+        this.attachments = attachments;
+        this.entryFolders = entryFolders;
+    }
+
+    /**
+     * @return true if the content type is already compressed
+     */
+    public static boolean isCompressed(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters);
+        }
+        type = type.trim();
+        if (COMPRESSED_TYPES.contains(type)) {
+            return true;
+        }
+        for (String prefix : COMPRESSED_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        AttachmentStore store = AttachmentStores.get();
+        ZipOutputStream zip = new ZipOutputStream(output);
+        for (Map.Entry<Long, Collection<XmlAttachment>> files : attachments.entrySet()) {
+            Long entryId = files.getKey();
+            for (XmlAttachment file : files.getValue()) {
+                Attachment attachment;
+                try {
+                    attachment = store.find(entryId, file.getFileName(), false);
+                } catch (CFException e) {
+                    throw new IOException("Could not read attachment " + entryId + "/" + file.getFileName(), e);
+                }
+                if (attachment == null) {
+                    // removed since the listing
+                    continue;
+                }
+                AttachmentContent content = attachment.getStoredContent();
+                try {
+                    ZipEntry zipEntry = new ZipEntry(entryFolders ? entryId + "/" + file.getFileName() : file.getFileName());
+                    if (attachment.getLastModified() != null) {
+                        zipEntry.setTime(attachment.getLastModified().getTime());
+                    }
+                    zip.setLevel(isCompressed(attachment.getMimeType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                    zip.putNextEntry(zipEntry);
+                    InputStream in = content.open();
+                    try {
+                        IOUtils.copyLarge(in, zip);
+                    } finally {
+                        in.close();
+                    }
+                    zip.closeEntry();
+                } finally {
+                    content.dispose();
+                }
+            }
+        }
+        zip.finish();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Content of a stored file, readable until disposed.
+ */
+public interface AttachmentContent {
+
+    /**
+     * @return stream over the whole content, to be closed by the caller
+     */
+    InputStream open() throws IOException;
+
+    /**
+     * Writes a part of the content.
+     *
+     * @param out destination
+     * @param offset first byte
+     * @param length number of bytes
+     */
+    void write(OutputStream out, long offset, long length) throws IOException;
+
+    void dispose();
+}
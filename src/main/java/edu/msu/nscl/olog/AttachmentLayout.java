@@ -0,0 +1,263 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import org.apache.jackrabbit.JcrConstants;
+
+/**
+ * Repository paths of the attachment and thumbnail folders.
+ *
+ * The folder of an entry is <tt>/a/{id / 1000000}/{id / 1000 % 1000}/{id}</tt>
+ * and its thumbnails are under the same path below <tt>/t</tt>, so no folder
+ * has more than a thousand children and adding an entry only rewrites the
+ * child list of a small folder. Folders of the former flat layout, directly
+ * under the root and under <tt>/thumbnails</tt>, are still read until
+ * {@link #migrate} has moved them.
+ */
+public class AttachmentLayout {
+
+    private static final String FILES = "a";
+    private static final String THUMBNAILS = "t";
+    private static final String LEGACY_THUMBNAILS = "thumbnails";
+    /**
+     * Number of entry folders moved per save.
+     */
+    private static final int MIGRATION_BATCH_SIZE = 100;
+    /**
+     * Pause between two migration batches, in milliseconds.
+     */
+    private static final long MIGRATION_PAUSE = 1000L;
+    private static final Logger log = Logger.getLogger(AttachmentLayout.class.getName());
+    private static final Object lock = new Object();
+    private static final Object folderLock = new Object();
+    private static final AtomicLong migrated = new AtomicLong();
+    private static volatile boolean migrating = false;
+
+    private AttachmentLayout() {
+    }
+
+    /**
+     * @param entryId log entry
+     * @param thumbnail true for the thumbnail folder
+     * @return path of the folder, relative to the root node
+     */
+    public static String folderPath(Long entryId, boolean thumbnail) {
+        long id = entryId.longValue();
+        return (thumbnail ? THUMBNAILS : FILES) + "/" + (id / 1000000) + "/" + (id / 1000 % 1000) + "/" + id;
+    }
+
+    private static String legacyPath(Long entryId, boolean thumbnail) {
+        return thumbnail ? LEGACY_THUMBNAILS + "/" + entryId : entryId.toString();
+    }
+
+    /**
+     * @return true if the path of a repository node is inside a thumbnail
+     * folder
+     */
+    public static boolean isThumbnail(String path) {
+        return path.startsWith("/" + THUMBNAILS + "/") || path.startsWith("/" + LEGACY_THUMBNAILS + "/");
+    }
+
+    /**
+     * Returns the folder of an entry, creating it and its parents.
+     *
+     * @param root root node
+     * @param entryId log entry
+     * @param thumbnail true for the thumbnail folder
+     * @return folder node
+     */
+    public static Node getFolder(Node root, Long entryId, boolean thumbnail) throws RepositoryException {
+        return getFolder(root, folderPath(entryId, thumbnail));
+    }
+
+    /**
+     * Missing folders are created and saved one caller at a time, so that
+     * two uploads to a new entry, or to the first entry of a new range, do
+     * not both add the same folder and fail the second save. Saving also
+     * saves the pending changes of the session.
+     */
+    private static Node getFolder(Node root, String path) throws RepositoryException {
+        if (root.hasNode(path)) {
+            return root.getNode(path);
+        }
+        synchronized (folderLock) {
+            // see the folders other sessions saved meanwhile
+            root.getSession().refresh(true);
+            Node node = root;
+            for (String name : path.split("/")) {
+                if (node.hasNode(name)) {
+                    node = node.getNode(name);
+                } else {
+                    node = node.addNode(name, JcrConstants.NT_FOLDER);
+                }
+            }
+            root.getSession().save();
+            return node;
+        }
+    }
+
+    /**
+     * @return the existing folders of an entry, in the current layout first
+     */
+    public static List<Node> findFolders(Node root, Long entryId, boolean thumbnail) throws RepositoryException {
+        List<Node> folders = new ArrayList<Node>(2);
+        String path = folderPath(entryId, thumbnail);
+        if (root.hasNode(path)) {
+            folders.add(root.getNode(path));
+        }
+        path = legacyPath(entryId, thumbnail);
+        if (root.hasNode(path)) {
+            folders.add(root.getNode(path));
+        }
+        return folders;
+    }
+
+    /**
+     * @return the file node of an attachment or thumbnail, null if not found
+     */
+    public static Node findFile(Node root, Long entryId, String fileName, boolean thumbnail) throws RepositoryException {
+        for (Node folder : findFolders(root, entryId, thumbnail)) {
+            if (folder.hasNode(fileName)) {
+                return folder.getNode(fileName);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the folders of the flat layout to the current one in the
+     * background, a batch of entries per save with a pause between batches.
+     *
+     * @return false if a migration is already running
+     */
+    public static boolean migrate() {
+        synchronized (lock) {
+            if (migrating) {
+                return false;
+            }
+            migrating = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Set<Long> kept = new HashSet<Long>();
+                    while (migrateBatch(false, kept) > 0) {
+                        Thread.sleep(MIGRATION_PAUSE);
+                    }
+                    kept.clear();
+                    while (migrateBatch(true, kept) > 0) {
+                        Thread.sleep(MIGRATION_PAUSE);
+                    }
+                    log.info("Attachment layout migration done, " + migrated.get() + " folders moved");
+                } catch (InterruptedException e) {
+                    log.warning("Attachment layout migration interrupted");
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Attachment layout migration failed", e);
+                } finally {
+                    migrating = false;
+                }
+            }
+        }, "olog-attachment-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Moves up to {@link #MIGRATION_BATCH_SIZE} entry folders. Files of an
+     * entry whose new folder already exists are moved one by one. A file
+     * whose name is taken in the new folder is left in the old one, which is
+     * then kept and still read; each such collision is logged.
+     *
+     * @param kept ids of the entries whose old folder is kept, skipped and
+     * added to by this batch
+     * @return number of folders moved or kept
+     */
+    private static int migrateBatch(boolean thumbnail, Set<Long> kept) throws CFException, RepositoryException {
+        JCRSessionPool pool = JCRUtil.getWritePool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            Node root = session.getRootNode();
+            Node parent = root;
+            if (thumbnail) {
+                if (!root.hasNode(LEGACY_THUMBNAILS)) {
+                    return 0;
+                }
+                parent = root.getNode(LEGACY_THUMBNAILS);
+            }
+            List<Long> entryIds = new ArrayList<Long>();
+            NodeIterator nodes = parent.getNodes();
+            while (nodes.hasNext() && entryIds.size() < MIGRATION_BATCH_SIZE) {
+                String name = nodes.nextNode().getName();
+                try {
+                    Long entryId = Long.valueOf(name);
+                    if (!kept.contains(entryId)) {
+                        entryIds.add(entryId);
+                    }
+                } catch (NumberFormatException e) {
+                    // not an entry folder
+                }
+            }
+            int moved = 0;
+            for (Long entryId : entryIds) {
+                String source = legacyPath(entryId, thumbnail);
+                String target = folderPath(entryId, thumbnail);
+                if (root.hasNode(target)) {
+                    Node folder = root.getNode(target);
+                    List<String> names = new ArrayList<String>();
+                    NodeIterator files = root.getNode(source).getNodes();
+                    while (files.hasNext()) {
+                        names.add(files.nextNode().getName());
+                    }
+                    for (String name : names) {
+                        if (folder.hasNode(name)) {
+                            log.warning("Attachment layout migration kept /" + source + "/" + name
+                                    + ", /" + target + "/" + name + " exists");
+                        } else {
+                            session.move("/" + source + "/" + name, "/" + target + "/" + name);
+                        }
+                    }
+                    if (root.getNode(source).hasNodes()) {
+                        kept.add(entryId);
+                    } else {
+                        root.getNode(source).remove();
+                        moved++;
+                    }
+                } else {
+                    getFolder(root, target.substring(0, target.lastIndexOf('/')));
+                    session.move("/" + source, "/" + target);
+                    moved++;
+                }
+            }
+            session.save();
+            migrated.addAndGet(moved);
+            return entryIds.size();
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    public static boolean isMigrating() {
+        return migrating;
+    }
+
+    public static long getMigrated() {
+        return migrated.get();
+    }
+}
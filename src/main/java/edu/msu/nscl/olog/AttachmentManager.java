@@ -5,234 +5,502 @@
 package edu.msu.nscl.olog;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import javax.jcr.*;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.DatatypeConverter;
-import net.coobird.thumbnailator.Thumbnails;
-import org.apache.commons.io.IOUtils;
-import org.apache.jackrabbit.JcrConstants;
+import org.apache.commons.io.input.CountingInputStream;
 
 /**
  *
  * @author berryman
  */
 public class AttachmentManager {
+
+    private static final int MAX_CACHED_TERMS = 1000;
+    /**
+     * Number of hits written per insert batch.
+     */
+    private static final int HIT_BATCH_SIZE = 1000;
+    /**
+     * Upper bound on the hits stored per term.
+     */
+    private static final int MAX_STORED_HITS = 10000;
+    /**
+     * Lifetime of the stored hits of a term, in milliseconds; a term is
+     * looked up again under a new key once its period is over.
+     */
+    private static final long SEARCH_HITS_TTL = 3600000L;
+    /**
+     * Time between two deletions of outdated hits, in milliseconds.
+     */
+    private static final long SEARCH_HITS_CLEANUP_INTERVAL = 300000L;
+    private static final AtomicLong searchGeneration = new AtomicLong();
+    private static final ConcurrentMap<String, StoredTerm> searchTerms = new ConcurrentHashMap<String, StoredTerm>();
+    private static final Set<String> queryKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Logger log = Logger.getLogger(AttachmentManager.class.getName());
+    private static Thread cleanup;
     
     private AttachmentManager() {
     }
     
-    public static List<Long> findAll(String searchTerm) throws CFException {
+    /**
+     * Finds the entries with attachments matching a full-text term and
+     * stores them in the attachment_search_hits table, so that log searches
+     * can semi-join them instead of passing an id list. Each term is looked
+     * up in the store once per period of {@link #SEARCH_HITS_TTL} until
+     * attachments are created or removed, and the term is bound as a query
+     * value.
+     *
+     * At most {@link #MAX_STORED_HITS} hits are stored per term, those of
+     * the newest entries, which is what the first pages of a search show. A
+     * search reaching below the oldest stored entry looks the term up again
+     * and stores only the hits within its own entry id range, under a key
+     * of its own that {@link #releaseSearchHits(String)} deletes afterwards.
+     *
+     * @param searchTerm full-text term
+     * @param entryIdRange {min, max} entry ids of the search, null for all
+     * @return key of the hits in attachment_search_hits, null if no
+     * attachment matches
+     * @throws CFException
+     */
+    public static String findSearchHits(String searchTerm, Long[] entryIdRange) throws CFException {
+        long generation = searchGeneration.get();
+        String key = termKey(generation, System.currentTimeMillis() / SEARCH_HITS_TTL, searchTerm);
+        StoredTerm term = searchTerms.get(key);
+        if (term == null) {
+            term = storeSearchHits(key, generation, searchTerm);
+            if (searchTerms.size() >= MAX_CACHED_TERMS) {
+                searchTerms.clear();
+            }
+            searchTerms.put(key, term);
+        }
+        if (term.hits == 0) {
+            return null;
+        }
+        if (term.floor == null || (entryIdRange != null && entryIdRange[0] >= term.floor)) {
+            return key;
+        }
+        return stageQueryHits(searchTerm, entryIdRange);
+    }
+
+    /**
+     * Deletes the hits stored for a single search by
+     * {@link #findSearchHits(String, Long[])}; keys shared by all searches of
+     * a term are left to the cleanup thread.
+     *
+     * @param key key returned by findSearchHits
+     */
+    public static void releaseSearchHits(String key) {
+        if (!queryKeys.remove(key)) {
+            return;
+        }
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM attachment_search_hits WHERE term_key = ?");
+            ps.setString(1, key);
+            ps.executeUpdate();
+            ps.close();
+            ps = con.prepareStatement("DELETE FROM attachment_search_terms WHERE term_key = ?");
+            ps.setString(1, key);
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not delete attachment search hits " + key, e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stored term, or looks it up in the store and stores the
+     * hits of its newest entries.
+     */
+    private static StoredTerm storeSearchHits(String key, long generation, String searchTerm) throws CFException {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("SELECT hits, floor_entry_id FROM attachment_search_terms WHERE term_key = ?");
+            ps.setString(1, key);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                int hits = rs.getInt(1);
+                long floor = rs.getLong(2);
+                return new StoredTerm(hits, rs.wasNull() ? null : floor);
+            }
+            List<Long> ids = new ArrayList<Long>(AttachmentStores.get().search(searchTerm));
+            Long floor = null;
+            if (ids.size() > MAX_STORED_HITS) {
+                Collections.sort(ids, Collections.reverseOrder());
+                ids = ids.subList(0, MAX_STORED_HITS);
+                floor = ids.get(MAX_STORED_HITS - 1);
+            }
+            con.setAutoCommit(false);
+            insertHits(con, key, generation, ids, floor);
+            con.commit();
+            return new StoredTerm(ids.size(), floor);
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Search: " + searchTerm + " could not store attachment hits. " + e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks a term up in the store for a single search and stores the hits
+     * within its entry id range under a new key.
+     *
+     * @return the key, null if no hit is in the range
+     */
+    private static String stageQueryHits(String searchTerm, Long[] entryIdRange) throws CFException {
         List<Long> ids = new ArrayList<Long>();
+        for (Long id : AttachmentStores.get().search(searchTerm)) {
+            if (entryIdRange == null || (id >= entryIdRange[0] && id <= entryIdRange[1])) {
+                ids.add(id);
+            }
+        }
+        if (ids.isEmpty()) {
+            return null;
+        }
+        String key = UUID.randomUUID().toString().replace("-", "");
+        Connection con = null;
         try {
-            Session session = JCRUtil.getSession();
-            Workspace workspace = session.getWorkspace();
-            QueryManager qm = workspace.getQueryManager();
-            Query query = qm.createQuery("//element(*, nt:file)[jcr:contains(jcr:content, '" + searchTerm + "')]", Query.XPATH);
-            QueryResult qr = query.execute();
-            NodeIterator ni = qr.getNodes();
-            while (ni.hasNext()) {
-                Node node = ni.nextNode();
-                Node parent = node.getParent();
-                String name = parent.getName();
-                ids.add(Long.valueOf(name));
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            con.setAutoCommit(false);
+            // not tied to a generation: released after the search, or
+            // deleted by the cleanup thread once expired
+            insertHits(con, key, Long.MAX_VALUE, ids, null);
+            con.commit();
+            queryKeys.add(key);
+            return key;
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Search: " + searchTerm + " could not store attachment hits. " + e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                }
             }
-        } catch (LoginException e) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Search: " + searchTerm + " could not login to repository. " + e);
         }
-        catch (RepositoryException e) {
-            throw new CFException(Response.Status.CONFLICT,
-                    "Search: " + searchTerm + " could not put item in repository. " + e);
+    }
+
+    private static void insertHits(Connection con, String key, long generation, List<Long> ids, Long floor) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("INSERT IGNORE INTO attachment_search_hits (term_key, entry_id, generation) VALUES (?, ?, ?)");
+        int batched = 0;
+        for (Long id : ids) {
+            ps.setString(1, key);
+            ps.setLong(2, id);
+            ps.setLong(3, generation);
+            ps.addBatch();
+            if (++batched % HIT_BATCH_SIZE == 0) {
+                ps.executeBatch();
+            }
+        }
+        ps.executeBatch();
+        ps.close();
+        ps = con.prepareStatement("INSERT IGNORE INTO attachment_search_terms (term_key, generation, hits, floor_entry_id, created) VALUES (?, ?, ?, ?, NOW())");
+        ps.setString(1, key);
+        ps.setLong(2, generation);
+        ps.setInt(3, ids.size());
+        if (floor == null) {
+            ps.setNull(4, Types.INTEGER);
+        } else {
+            ps.setLong(4, floor);
+        }
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    private static String termKey(long generation, long period, String searchTerm) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return DatatypeConverter.printHexBinary(md5.digest((generation + ":" + period + ":" + searchTerm).getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Outdates the stored attachment search hits after attachments changed.
+     * Terms looked up from then on get new keys; the rows of older keys are
+     * deleted later by the cleanup thread, not on the write path.
+     */
+    public static void invalidateSearchHits() {
+        searchGeneration.incrementAndGet();
+        searchTerms.clear();
+    }
+
+    /**
+     * Starts a new generation of attachment search hits, outdating the hits
+     * stored before a restart, and starts the thread deleting outdated hits.
+     */
+    public static void clearSearchHits() {
+        searchGeneration.set(System.currentTimeMillis());
+        invalidateSearchHits();
+        cleanup = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        deleteOutdatedSearchHits();
+                        Thread.sleep(SEARCH_HITS_CLEANUP_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "olog-attachment-hits-cleanup");
+        cleanup.setDaemon(true);
+        cleanup.start();
+    }
+
+    /**
+     * Stops the thread deleting outdated hits.
+     */
+    public static void stopSearchHitsCleanup() {
+        if (cleanup != null) {
+            cleanup.interrupt();
+            cleanup = null;
         }
+    }
 
-        return ids;
+    /**
+     * Deletes the terms of older generations and the terms whose period is
+     * over by twice its length, so no search still using them, then the hits
+     * left without a term. Uncommitted hits of lookups in progress are not
+     * visible here and are kept.
+     */
+    private static void deleteOutdatedSearchHits() {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM attachment_search_terms"
+                    + " WHERE generation < ? OR created < NOW() - INTERVAL ? SECOND");
+            ps.setLong(1, searchGeneration.get());
+            ps.setLong(2, 2 * SEARCH_HITS_TTL / 1000);
+            ps.executeUpdate();
+            ps.close();
+            ps = con.prepareStatement("DELETE h FROM attachment_search_hits h"
+                    + " LEFT JOIN attachment_search_terms t ON t.term_key = h.term_key WHERE t.term_key IS NULL");
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not delete outdated attachment search hits", e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
     }
     
     public static XmlAttachments findAll(Long logId) throws CFException {
-        XmlAttachments xmlAttachments = new XmlAttachments();
-        try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(logId.toString());
-            NodeIterator nodes = folderNode.getNodes();
-            while (nodes.hasNext()) {
-                Node contentNode = nodes.nextNode();
-                String tfileName = contentNode.getName();
+        return findAll(Collections.singleton(logId)).get(logId);
+    }
+
+    /**
+     * Attachment metadata of several log entries at once, read from the
+     * attachments table. Entries not yet covered by its backfill are listed
+     * from the attachment store.
+     *
+     * @param logIds entry ids
+     * @return attachments keyed by entry id, empty for entries without any
+     * @throws CFException
+     */
+    public static Map<Long, XmlAttachments> findAll(Collection<Long> logIds) throws CFException {
+        List<Long> recorded = new ArrayList<Long>();
+        List<Long> unrecorded = new ArrayList<Long>();
+        for (Long logId : logIds) {
+            if (AttachmentMetadata.covers(logId)) {
+                recorded.add(logId);
+            } else {
+                unrecorded.add(logId);
+            }
+        }
+        Map<Long, XmlAttachments> result = AttachmentMetadata.find(recorded);
+        if (!unrecorded.isEmpty()) {
+            result.putAll(listStore(unrecorded));
+        }
+        return result;
+    }
+
+    /**
+     * Lists the attachments of entries from the store. Each attachment and
+     * thumbnail folder is listed a single time; thumbnail presence is taken
+     * from the thumbnail folder listing instead of a lookup per file, and the
+     * status of missing thumbnails from one query of the thumbnail jobs.
+     */
+    private static Map<Long, XmlAttachments> listStore(Collection<Long> logIds) throws CFException {
+        Map<Long, XmlAttachments> result = new HashMap<Long, XmlAttachments>();
+        for (Long logId : logIds) {
+            result.put(logId, new XmlAttachments());
+        }
+        AttachmentStore store = AttachmentStores.get();
+        Map<Long, List<Attachment>> files = store.list(logIds, false);
+        Map<Long, List<Attachment>> thumbnails = store.list(files.keySet(), true);
+        Set<Long> waiting = new HashSet<Long>();
+        for (Map.Entry<Long, List<Attachment>> entry : files.entrySet()) {
+            Long logId = entry.getKey();
+            Set<String> thumbnailNames = new HashSet<String>();
+            if (thumbnails.containsKey(logId)) {
+                for (Attachment thumbnail : thumbnails.get(logId)) {
+                    thumbnailNames.add(thumbnail.getFileName());
+                }
+            }
+            XmlAttachments xmlAttachments = result.get(logId);
+            for (Attachment file : entry.getValue()) {
                 XmlAttachment xmlAttachment = new XmlAttachment();
-                xmlAttachment.setFileName(contentNode.getName());
-                xmlAttachment.setContentType(contentNode.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_MIMETYPE).getString());
-                xmlAttachment.setFileSize(contentNode.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_DATA).getLength());
-                if (rn.hasNode("thumbnails/" + logId.toString() + "/" + tfileName)) {
+                xmlAttachment.setFileName(file.getFileName());
+                xmlAttachment.setContentType(file.getMimeType());
+                xmlAttachment.setFileSize(file.getFileSize());
+                if (thumbnailNames.contains(file.getFileName())) {
                     xmlAttachment.setThumbnail(true);
+                    xmlAttachment.setThumbnailStatus(ThumbnailManager.READY);
+                } else {
+                    waiting.add(logId);
                 }
                 xmlAttachments.addXmlAttachment(xmlAttachment);
             }
-            return xmlAttachments;
-
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
-            // TODO: Return Empty set only for javax.jcr.PathNotFoundException
-            return xmlAttachments;
-            //
-            //throw new CFException(Response.Status.NOT_FOUND,
-            //        "Log entry " + logId.toString() + " could not find item in repository. " + ex);
         }
+        if (!waiting.isEmpty()) {
+            Map<Long, Map<String, String>> status = ThumbnailManager.findStatus(waiting);
+            for (Long logId : waiting) {
+                Map<String, String> states = status.get(logId);
+                if (states == null) {
+                    continue;
+                }
+                for (XmlAttachment xmlAttachment : result.get(logId).getAttachments()) {
+                    if (!xmlAttachment.getThumbnail()) {
+                        xmlAttachment.setThumbnailStatus(states.get(xmlAttachment.getFileName()));
+                    }
+                }
+            }
+        }
+        return result;
     }
     
-    public static Attachment findAttachment(String filePath, String fileName) throws CFException {
-        InputStream content = null;
-        String mimeType = null;
-        try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(filePath);
-            Node contentNode = folderNode.getNode(fileName).getNode(JcrConstants.JCR_CONTENT);
-            javax.jcr.Property dataProperty = contentNode.getProperty(JcrConstants.JCR_DATA);
-            javax.jcr.Property mimeProperty = contentNode.getProperty(JcrConstants.JCR_MIMETYPE);
-
-            mimeType = mimeProperty.getString();
-
-            Binary bin = dataProperty.getBinary();
-            content = bin.getStream();
-            bin.dispose();
-
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    filePath + ", could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
+    /**
+     * Reads a stored file without opening its content. The stored content
+     * of the result must be disposed by the caller.
+     *
+     * @param logId log entry
+     * @param fileName file
+     * @param thumbnail true to read the thumbnail of the file
+     * @return attachment with stored content, size, content identity and
+     * last modification time
+     * @throws CFException
+     */
+    public static Attachment findAttachment(Long logId, String fileName, boolean thumbnail) throws CFException {
+        Attachment attachment = AttachmentStores.get().find(logId, fileName, thumbnail);
+        if (attachment == null) {
             throw new CFException(Response.Status.NOT_FOUND,
-                    filePath + ", could not find item in repository. " + ex);
+                    "Log entry " + logId + " has no attachment " + fileName);
         }
-        Attachment attachment = new Attachment();
-        attachment.setContent(content);
-        attachment.setMimeType(mimeType);
-
         return attachment;
     }
 
     public static XmlAttachment create(Attachment attachment, Long logId) throws CFException {
         XmlAttachment result = new XmlAttachment();
         try {
-            Session session = JCRUtil.getSession();
-            ValueFactory valueFactory = session.getValueFactory();
-            Node rn = session.getRootNode();
             String mimeType = attachment.getMimeType();
             String fileName = attachment.getFileName();
-            Long fileSize = attachment.getFileSize();
-            final int ndx = fileName.lastIndexOf(".");
-            final String extension = fileName.substring(ndx + 1);
             InputStream stream;
 
             if (attachment.getEncoding().equalsIgnoreCase("base64")) {
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(attachment.getContent(), writer, null);
-                stream = new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(writer.toString()));
+                stream = new BufferedInputStream(new Base64DecodingInputStream(attachment.getContent()));
             } else {
-                stream = attachment.getContent();
+                stream = new BufferedInputStream(attachment.getContent());
             }
+            String imageType = ThumbnailImage.detectType(stream);
 
             if (mimeType == null) {
-                mimeType = "application/octet-stream";
+                mimeType = imageType != null ? imageType : "application/octet-stream";
             }
 
-            Node folderNode;
-
-            if (rn.hasNode(logId.toString())) {
-                folderNode = rn.getNode(logId.toString());
-                if (!folderNode.isNodeType(JcrConstants.NT_FOLDER)) {
-                    folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
-                }
-            } else {
-                folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
-            }
-            Node fileNode = folderNode.addNode(fileName, JcrConstants.NT_FILE);
-            Node resNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-            resNode.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
-            resNode.setProperty(JcrConstants.JCR_ENCODING, "");
-
-            Binary binFile = valueFactory.createBinary(stream);
-            resNode.setProperty(JcrConstants.JCR_DATA, binFile);
-
-            // Add thumbnail
-            if ((extension.equals("jpeg") || extension.equals("jpg")
-                    || extension.equals("gif")
-                    || extension.equals("png"))) {
-                Node tfolderNode;
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                Thumbnails.of(binFile.getStream()).size(80, 80).outputFormat(extension).toOutputStream(outputStream);
-                InputStream fis = new ByteArrayInputStream(outputStream.toByteArray());
-                Binary binThumbnail = valueFactory.createBinary(fis);
-
-                if (!rn.hasNode("thumbnails")) {
-                    rn.addNode("thumbnails", JcrConstants.NT_FOLDER);
-                }
-
-                if (rn.hasNode("thumbnails/" + logId.toString())) {
-                    tfolderNode = rn.getNode("thumbnails/" + logId.toString());
-                    if (!tfolderNode.isNodeType(JcrConstants.NT_FOLDER)) {
-                        tfolderNode = rn.addNode("thumbnails/" + logId.toString(), JcrConstants.NT_FOLDER);
-                    }
-                } else {
-                    tfolderNode = rn.addNode("thumbnails/" + logId.toString(), JcrConstants.NT_FOLDER);
-                }
-                Node tfileNode = tfolderNode.addNode(fileName, JcrConstants.NT_FILE);
-                Node tresNode = tfileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-                tresNode.setProperty(JcrConstants.JCR_MIMETYPE, "image/" + extension);
-                tresNode.setProperty(JcrConstants.JCR_ENCODING, "");
-                tresNode.setProperty(JcrConstants.JCR_DATA, binThumbnail);
-                binThumbnail.dispose();
-                result.setThumbnail(true);
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            CountingInputStream counter = new CountingInputStream(new DigestInputStream(stream, sha));
+            AttachmentStores.get().store(logId, fileName, mimeType, counter, false);
+            String thumbnailStatus = imageType != null ? ThumbnailManager.PENDING : null;
+            AttachmentMetadata.insert(logId, fileName, mimeType, counter.getByteCount(),
+                    DatatypeConverter.printHexBinary(sha.digest()).toLowerCase(), thumbnailStatus);
+            invalidateSearchHits();
+            LogCountCache.invalidate();
+            if (imageType != null) {
+                ThumbnailManager.submit(logId, fileName);
             }
-            binFile.dispose();
-
-            session.save();
             result.setContentType(mimeType);
             result.setFileName(fileName);
-            result.setFileSize(fileSize);
+            result.setFileSize(counter.getByteCount());
+            result.setThumbnailStatus(thumbnailStatus);
 
             return result;
 
         } catch (IOException ex) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
-                    "Log entry " + logId.toString() + " could not create thumbnail. " + ex);
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
-            throw new CFException(Response.Status.CONFLICT,
-                    "Log entry " + logId.toString() + " could not put item in repository. " + ex);
+                    "Log entry " + logId.toString() + " could not read attachment. " + ex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
         }
     }
 
 
 
     public static void remove(String fileName, Long logId) throws CFException {
-        try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(logId.toString());
-            Node contentNode = folderNode.getNode(fileName);
-            contentNode.remove();
-            if (rn.hasNode("thumbnails/" + logId.toString() + "/" + fileName)) {
-                Node tfolderNode = rn.getNode("thumbnails/" + logId.toString());
-                Node tcontentNode = tfolderNode.getNode(fileName);
-                tcontentNode.remove();
-            }
-            session.save();
-
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
+        AttachmentStore store = AttachmentStores.get();
+        if (!store.remove(logId, fileName, false)) {
             throw new CFException(Response.Status.NOT_FOUND,
-                    "Log entry " + logId.toString() + " could not find item in repository. " + ex);
+                    "Log entry " + logId.toString() + " has no attachment " + fileName);
+        }
+        store.remove(logId, fileName, true);
+        AttachmentMetadata.delete(logId, fileName);
+        invalidateSearchHits();
+        LogCountCache.invalidate();
+        ThumbnailManager.cancel(logId, fileName);
+    }
+
+    /**
+     * Number of stored hits of a term and the oldest entry stored when the
+     * hits were capped, null if all are stored.
+     */
+    private static class StoredTerm {
+
+        private final int hits;
+        private final Long floor;
+
+        StoredTerm(int hits, Long floor) {
+            this.hits = hits;
+            this.floor = floor;
         }
     }
 }
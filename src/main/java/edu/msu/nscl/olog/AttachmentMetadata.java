@@ -0,0 +1,357 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Attachment metadata kept in the attachments table, so that listings are a
+ * query on the indexed entry id instead of a walk of the attachment store.
+ *
+ * Rows are written by uploads and removals and the thumbnail state by the
+ * thumbnail workers. Attachments stored before the table existed are added
+ * by a backfill in entry id order, which records its progress in the
+ * attachment_backfill table and resumes after a restart. Until it is
+ * complete, entries past its progress are still listed from the store.
+ */
+public class AttachmentMetadata {
+
+    /**
+     * Number of entries backfilled per round.
+     */
+    private static final int BACKFILL_BATCH_SIZE = 100;
+    /**
+     * Pause between two backfill rounds, in milliseconds.
+     */
+    private static final long BACKFILL_PAUSE = 200L;
+    private static final Logger log = Logger.getLogger(AttachmentMetadata.class.getName());
+    private static final Object lock = new Object();
+    private static final AtomicLong backfilled = new AtomicLong();
+    private static volatile boolean complete = false;
+    private static volatile long lastEntryId = 0;
+    private static volatile boolean backfilling = false;
+
+    private AttachmentMetadata() {
+    }
+
+    /**
+     * Reads the backfill progress, resuming the backfill if it is not
+     * complete.
+     */
+    public static void open() {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("SELECT last_entry_id, complete FROM attachment_backfill WHERE id = 1");
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                lastEntryId = rs.getLong(1);
+                complete = rs.getBoolean(2);
+            }
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Could not read attachment backfill progress", e);
+            return;
+        } finally {
+            close(con);
+        }
+        if (!complete) {
+            backfill();
+        }
+    }
+
+    /**
+     * @return true if the attachments of the entry are all in the table
+     */
+    public static boolean covers(Long entryId) {
+        return complete || entryId.longValue() <= lastEntryId;
+    }
+
+    /**
+     * Records a stored attachment, replacing the row of a file with the same
+     * name.
+     *
+     * @param hash hex SHA-256 of the content, null if unknown
+     * @param thumbnail thumbnail state, null if the file has no thumbnail
+     */
+    public static void insert(Long entryId, String fileName, String contentType, long fileSize,
+            String hash, String thumbnail) throws CFException {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            insert(con, entryId, fileName, contentType, fileSize, hash, thumbnail, false);
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + entryId + " could not record attachment " + fileName + ". " + e);
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void insert(Connection con, Long entryId, String fileName, String contentType, long fileSize,
+            String hash, String thumbnail, boolean ignore) throws SQLException {
+        PreparedStatement ps = con.prepareStatement((ignore ? "INSERT IGNORE" : "INSERT")
+                + " INTO attachments (entry_id, file_name, content_type, file_size, hash, thumbnail, created)"
+                + " VALUES (?, ?, ?, ?, ?, ?, NOW())"
+                + (ignore ? "" : " ON DUPLICATE KEY UPDATE content_type = VALUES(content_type), file_size = VALUES(file_size),"
+                + " hash = VALUES(hash), thumbnail = VALUES(thumbnail)"));
+        ps.setLong(1, entryId);
+        ps.setString(2, fileName);
+        ps.setString(3, contentType);
+        ps.setLong(4, fileSize);
+        ps.setString(5, hash);
+        ps.setString(6, thumbnail);
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    public static void delete(Long entryId, String fileName) throws CFException {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM attachments WHERE entry_id = ? AND file_name = ?");
+            ps.setLong(1, entryId);
+            ps.setString(2, fileName);
+            ps.executeUpdate();
+            ps.close();
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + entryId + " could not remove attachment " + fileName + ". " + e);
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * Sets the thumbnail state of a recorded attachment.
+     *
+     * @param state {@link ThumbnailManager#READY} or
+     * {@link ThumbnailManager#FAILED}
+     */
+    public static void setThumbnail(Long entryId, String fileName, String state) {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("UPDATE attachments SET thumbnail = ? WHERE entry_id = ? AND file_name = ?");
+            ps.setString(1, state);
+            ps.setLong(2, entryId);
+            ps.setString(3, fileName);
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not record thumbnail of " + entryId + "/" + fileName, e);
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * Attachments of several entries, in file name order.
+     *
+     * @param entryIds log entries
+     * @return attachments keyed by entry id, empty for entries without any
+     */
+    public static Map<Long, XmlAttachments> find(Collection<Long> entryIds) throws CFException {
+        Map<Long, XmlAttachments> result = new HashMap<Long, XmlAttachments>();
+        for (Long entryId : entryIds) {
+            result.put(entryId, new XmlAttachments());
+        }
+        if (entryIds.isEmpty()) {
+            return result;
+        }
+        StringBuilder sql = new StringBuilder("SELECT entry_id, file_name, content_type, file_size, thumbnail"
+                + " FROM attachments WHERE entry_id IN (");
+        for (int i = 0; i < entryIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ORDER BY entry_id, file_name");
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement(sql.toString());
+            int i = 1;
+            for (Long entryId : entryIds) {
+                ps.setLong(i++, entryId);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                XmlAttachment xmlAttachment = new XmlAttachment();
+                xmlAttachment.setFileName(rs.getString(2));
+                xmlAttachment.setContentType(rs.getString(3));
+                xmlAttachment.setFileSize(rs.getLong(4));
+                String thumbnail = rs.getString(5);
+                xmlAttachment.setThumbnail(ThumbnailManager.READY.equals(thumbnail));
+                xmlAttachment.setThumbnailStatus(thumbnail);
+                result.get(rs.getLong(1)).addXmlAttachment(xmlAttachment);
+            }
+            ps.close();
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entries " + entryIds + " could not read attachments. " + e);
+        } finally {
+            close(con);
+        }
+        return result;
+    }
+
+    /**
+     * Records the stored attachments of the entries not covered yet, in the
+     * background, by rounds of entries in id order.
+     *
+     * @return false if the backfill is complete or already running
+     */
+    public static boolean backfill() {
+        synchronized (lock) {
+            if (backfilling || complete) {
+                return false;
+            }
+            backfilling = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (backfillBatch()) {
+                        Thread.sleep(BACKFILL_PAUSE);
+                    }
+                    log.info("Attachment metadata backfill done, " + backfilled.get() + " files recorded");
+                } catch (InterruptedException e) {
+                    log.warning("Attachment metadata backfill interrupted");
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Attachment metadata backfill failed", e);
+                } finally {
+                    backfilling = false;
+                }
+            }
+        }, "olog-attachment-backfill");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Records the files of the next {@link #BACKFILL_BATCH_SIZE} entries.
+     * Rows written by uploads in the meantime are kept.
+     *
+     * @return false once every entry is covered
+     */
+    private static boolean backfillBatch() throws CFException, SQLException, IOException {
+        Connection con = DbConnection.getInstance().getDataSource().getConnection();
+        try {
+            List<Long> entryIds = new ArrayList<Long>();
+            PreparedStatement ps = con.prepareStatement("SELECT id FROM entries WHERE id > ? ORDER BY id LIMIT " + BACKFILL_BATCH_SIZE);
+            ps.setLong(1, lastEntryId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                entryIds.add(rs.getLong(1));
+            }
+            ps.close();
+
+            if (!entryIds.isEmpty()) {
+                AttachmentStore store = AttachmentStores.get();
+                Map<Long, List<Attachment>> files = store.list(entryIds, false);
+                Map<Long, List<Attachment>> thumbnails = store.list(files.keySet(), true);
+                Map<Long, Map<String, String>> jobs = ThumbnailManager.findStatus(files.keySet());
+                for (Map.Entry<Long, List<Attachment>> entry : files.entrySet()) {
+                    Long entryId = entry.getKey();
+                    Set<String> thumbnailNames = new HashSet<String>();
+                    if (thumbnails.containsKey(entryId)) {
+                        for (Attachment thumbnail : thumbnails.get(entryId)) {
+                            thumbnailNames.add(thumbnail.getFileName());
+                        }
+                    }
+                    for (Attachment file : entry.getValue()) {
+                        String thumbnail = null;
+                        if (thumbnailNames.contains(file.getFileName())) {
+                            thumbnail = ThumbnailManager.READY;
+                        } else if (jobs.containsKey(entryId)) {
+                            thumbnail = jobs.get(entryId).get(file.getFileName());
+                        }
+                        String hash = hash(store, entryId, file.getFileName());
+                        if (hash != null) {
+                            insert(con, entryId, file.getFileName(), file.getMimeType(), file.getFileSize(), hash, thumbnail, true);
+                            backfilled.incrementAndGet();
+                        }
+                    }
+                }
+            }
+
+            boolean done = entryIds.size() < BACKFILL_BATCH_SIZE;
+            long last = entryIds.isEmpty() ? lastEntryId : entryIds.get(entryIds.size() - 1);
+            ps = con.prepareStatement("UPDATE attachment_backfill SET last_entry_id = ?, complete = ? WHERE id = 1");
+            ps.setLong(1, last);
+            ps.setBoolean(2, done);
+            ps.executeUpdate();
+            ps.close();
+            lastEntryId = last;
+            complete = done;
+            return !done;
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * @return hex SHA-256 of a stored file, null if it was removed meanwhile
+     */
+    private static String hash(AttachmentStore store, Long entryId, String fileName) throws CFException, IOException {
+        Attachment attachment = store.find(entryId, fileName, false);
+        if (attachment == null) {
+            return null;
+        }
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            InputStream in = new DigestInputStream(attachment.getStoredContent().open(), sha);
+            try {
+                IOUtils.copyLarge(in, new NullOutputStream());
+            } finally {
+                in.close();
+            }
+            return DatatypeConverter.printHexBinary(sha.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            attachment.getStoredContent().dispose();
+        }
+    }
+
+    public static boolean isComplete() {
+        return complete;
+    }
+
+    public static boolean isBackfilling() {
+        return backfilling;
+    }
+
+    public static long getBackfilled() {
+        return backfilled.get();
+    }
+
+    private static void close(Connection con) {
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+import javax.persistence.*;
+
+/**
+ * Entry with an attachment matching a full-text search term. Rows are
+ * written by AttachmentManager and only read in log search subqueries.
+ */
+@Entity
+@Table(name = "attachment_search_hits")
+@IdClass(AttachmentSearchHitId.class)
+public class AttachmentSearchHit implements Serializable {
+
+    @Id
+    @Column(name = "term_key")
+    private String termKey;
+    @Id
+    @Column(name = "entry_id")
+    private Long entryId;
+    @Column(name = "generation")
+    private Long generation;
+
+    public AttachmentSearchHit() {
+    }
+
+    public String getTermKey() {
+        return termKey;
+    }
+
+    public void setTermKey(String termKey) {
+        this.termKey = termKey;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    public Long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(Long generation) {
+        this.generation = generation;
+    }
+}
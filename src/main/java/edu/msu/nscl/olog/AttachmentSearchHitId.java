@@ -0,0 +1,60 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+
+/**
+ * Primary key of AttachmentSearchHit.
+ */
+public class AttachmentSearchHitId implements Serializable {
+
+    private String termKey;
+
+    private Long entryId;
+
+    public String getTermKey() {
+        return termKey;
+    }
+
+    public void setTermKey(String termKey) {
+        this.termKey = termKey;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 89 * hash + (this.termKey != null ? this.termKey.hashCode() : 0);
+        hash = 89 * hash + (this.entryId != null ? this.entryId.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final AttachmentSearchHitId other = (AttachmentSearchHitId) obj;
+        if ((this.termKey == null) ? (other.termKey != null) : !this.termKey.equals(other.termKey)) {
+            return false;
+        }
+        if (this.entryId != other.entryId && (this.entryId == null || !this.entryId.equals(other.entryId))) {
+            return false;
+        }
+        return true;
+    }
+
+}
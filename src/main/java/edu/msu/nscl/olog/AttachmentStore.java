@@ -0,0 +1,74 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage of attachment and thumbnail files, by log entry and file name.
+ *
+ * Files are never replaced: a name is stored once per entry until removed.
+ * {@link AttachmentManager} builds the attachment service on top of it.
+ */
+public interface AttachmentStore {
+
+    /**
+     * Stores a new file.
+     *
+     * @param entryId log entry
+     * @param fileName file name
+     * @param mimeType content type
+     * @param content content, read to its end
+     * @param thumbnail true to store the thumbnail of the file
+     * @throws CFException 409 if the entry already has a file of that name
+     */
+    void store(Long entryId, String fileName, String mimeType, InputStream content, boolean thumbnail) throws CFException;
+
+    /**
+     * Reads a stored file without opening its content.
+     *
+     * @return attachment with its stored content, size, content identity
+     * and last modification time, or null if not found; the caller disposes
+     * the content, even if it does not read it, to release what the store
+     * holds for it
+     */
+    Attachment find(Long entryId, String fileName, boolean thumbnail) throws CFException;
+
+    /**
+     * @return true if the entry has a stored file of that name
+     */
+    boolean exists(Long entryId, String fileName, boolean thumbnail) throws CFException;
+
+    /**
+     * Lists the files of several entries.
+     *
+     * @return name, content type and size of the files, keyed by entry id;
+     * entries without files are left out
+     */
+    Map<Long, List<Attachment>> list(Collection<Long> entryIds, boolean thumbnail) throws CFException;
+
+    /**
+     * @return false if the file was not found
+     */
+    boolean remove(Long entryId, String fileName, boolean thumbnail) throws CFException;
+
+    /**
+     * Full-text lookup in the stored attachments.
+     *
+     * @param term full-text term
+     * @return ids of all the entries with a matching attachment, empty if
+     * the store has no full-text index
+     */
+    Set<Long> search(String term) throws CFException;
+
+    /**
+     * Releases the resources of the store.
+     */
+    void close();
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The configured attachment stores.
+ *
+ * The JCR store is always available. A filesystem store is opened when the
+ * <tt>olog.attachments.directory</tt> context parameter names a directory,
+ * and <tt>olog.attachments.store</tt> selects the store in use,
+ * <tt>jcr</tt> (default) or <tt>filesystem</tt>. {@link #copy} fills the
+ * filesystem store from the JCR one before switching. {@link #sweep} reclaims the
+ * blobs of the filesystem store that no attachment uses any more.
+ */
+public class AttachmentStores {
+
+    public static final String JCR = "jcr";
+    public static final String FILESYSTEM = "filesystem";
+    /**
+     * Number of entries whose files are copied per round.
+     */
+    private static final int COPY_BATCH_SIZE = 100;
+    /**
+     * Pause between two copy rounds, in milliseconds.
+     */
+    private static final long COPY_PAUSE = 200L;
+    private static final Logger log = Logger.getLogger(AttachmentStores.class.getName());
+    private static final Object lock = new Object();
+    private static final AtomicLong copied = new AtomicLong();
+    private static final AtomicLong swept = new AtomicLong();
+    private static AttachmentStore jcr;
+    private static FileAttachmentStore filesystem;
+    private static volatile AttachmentStore current;
+    private static volatile boolean copying = false;
+    private static volatile boolean sweeping = false;
+
+    private AttachmentStores() {
+    }
+
+    /**
+     * @param type store in use, null for jcr
+     * @param directory root of the filesystem store, null for none
+     */
+    public static void open(String type, String directory) {
+        jcr = new JcrAttachmentStore();
+        if (directory != null && directory.trim().length() > 0) {
+            filesystem = new FileAttachmentStore(new File(directory.trim()));
+        }
+        if (FILESYSTEM.equals(type)) {
+            if (filesystem == null) {
+                log.severe("Attachment store " + FILESYSTEM + " needs a directory, using " + JCR);
+                current = jcr;
+            } else {
+                current = filesystem;
+            }
+        } else {
+            current = jcr;
+        }
+    }
+
+    public static void close() {
+        if (filesystem != null) {
+            filesystem.close();
+        }
+        if (jcr != null) {
+            jcr.close();
+        }
+    }
+
+    /**
+     * @return store in use
+     */
+    public static AttachmentStore get() {
+        return current;
+    }
+
+    public static String getName() {
+        return current == filesystem && filesystem != null ? FILESYSTEM : JCR;
+    }
+
+    /**
+     * Copies the files of the JCR store that the filesystem store does not
+     * have yet, in the background, by rounds of entries in id order.
+     *
+     * @return false if no filesystem store is configured or a copy is
+     * already running
+     */
+    public static boolean copy() {
+        synchronized (lock) {
+            if (copying || filesystem == null) {
+                return false;
+            }
+            copying = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    long last = 0;
+                    List<Long> entryIds;
+                    while (!(entryIds = nextEntries(last)).isEmpty()) {
+                        copyFiles(entryIds, false);
+                        copyFiles(entryIds, true);
+                        last = entryIds.get(entryIds.size() - 1);
+                        Thread.sleep(COPY_PAUSE);
+                    }
+                    log.info("Attachment copy to " + FILESYSTEM + " store done, " + copied.get() + " files copied");
+                } catch (InterruptedException e) {
+                    log.warning("Attachment copy interrupted");
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Attachment copy failed", e);
+                } finally {
+                    copying = false;
+                }
+            }
+        }, "olog-attachment-copy");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Deletes the blobs of the filesystem store that no attachment uses any
+     * more, in the background.
+     *
+     * @return false if no filesystem store is configured or a sweep is
+     * already running
+     */
+    public static boolean sweep() {
+        synchronized (lock) {
+            if (sweeping || filesystem == null) {
+                return false;
+            }
+            sweeping = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    long deleted = filesystem.sweep();
+                    swept.addAndGet(deleted);
+                    log.info("Attachment sweep of " + FILESYSTEM + " store done, " + deleted + " blobs deleted");
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Attachment sweep failed", e);
+                } finally {
+                    sweeping = false;
+                }
+            }
+        }, "olog-attachment-sweep");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private static List<Long> nextEntries(long last) throws CFException, SQLException {
+        List<Long> entryIds = new ArrayList<Long>();
+        Connection con = DbConnection.getInstance().getDataSource().getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("SELECT id FROM entries WHERE id > ? ORDER BY id LIMIT " + COPY_BATCH_SIZE);
+            ps.setLong(1, last);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                entryIds.add(rs.getLong(1));
+            }
+            ps.close();
+        } finally {
+            con.close();
+        }
+        return entryIds;
+    }
+
+    private static void copyFiles(List<Long> entryIds, boolean thumbnail) throws Exception {
+        for (Map.Entry<Long, List<Attachment>> files : jcr.list(entryIds, thumbnail).entrySet()) {
+            Long entryId = files.getKey();
+            for (Attachment file : files.getValue()) {
+                if (filesystem.exists(entryId, file.getFileName(), thumbnail)) {
+                    continue;
+                }
+                Attachment source = jcr.find(entryId, file.getFileName(), thumbnail);
+                if (source == null) {
+                    continue;
+                }
+                try {
+                    InputStream in = source.getStoredContent().open();
+                    try {
+                        filesystem.store(entryId, file.getFileName(), source.getMimeType(), in, thumbnail);
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    source.getStoredContent().dispose();
+                }
+                copied.incrementAndGet();
+            }
+        }
+    }
+
+    public static boolean isCopying() {
+        return copying;
+    }
+
+    public static long getCopied() {
+        return copied.get();
+    }
+
+    public static boolean isSweeping() {
+        return sweeping;
+    }
+
+    public static long getSwept() {
+        return swept.get();
+    }
+}
@@ -8,6 +8,9 @@ import com.sun.jersey.multipart.FormDataBodyPart;
 import com.sun.jersey.multipart.FormDataParam;
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
@@ -24,6 +27,15 @@ import org.apache.commons.io.IOUtils;
 @Path("/attachments/")
 public class AttachmentsResource {
 
+    /**
+     * Downloads and thumbnails are revalidated with their ETag on every use:
+     * a file replaced under the same name gets a new thumbnail at the same
+     * URL.
+     */
+    private static final String CACHE_CONTROL = "private, no-cache";
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     @Context
     private UriInfo uriInfo;
     @Context
@@ -64,53 +76,165 @@ public class AttachmentsResource {
     }
     
     /**
-     * GET method for retrieving the list of attachments for a given log.
+     * GET method for retrieving all attachments of a log entry as a zip
+     * archive, streamed from the attachment store.
      *
-     * @return
+     * @param logId log id
+     * @return HTTP Response, 404 if the entry has no attachment
      */
     @GET
-    @Path("{logId}/{fileName}")
-    public Response getFile(@PathParam("logId") Long logId, @PathParam("fileName") String fileName ) {
+    @Path("{logId}.zip")
+    @Produces("application/zip")
+    public Response readArchive(@PathParam("logId") Long logId) {
         OlogImpl cm = OlogImpl.getInstance();
         String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
-        Attachment result;
         try {
-            String filePath = logId.toString();
-            result = cm.getAttachment(filePath, fileName);
-            Response r;
-            if (result == null) {
-                r = Response.status(Response.Status.NOT_FOUND).build();
-            } else {
-                r = Response.ok((Object)result.getContent()).type(result.getMimeType()).build();
+            Map<Long, Collection<XmlAttachment>> attachments = new LinkedHashMap<Long, Collection<XmlAttachment>>();
+            Collection<XmlAttachment> files = cm.findAttachmentsById(logId).getAttachments();
+            if (!files.isEmpty()) {
+                attachments.put(logId, files);
             }
-            audit.info( user+"|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
+            Response r = archive(attachments, false, logId + ".zip");
+            audit.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
             return r;
         } catch (CFException e) {
-            
-            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|" + e.getResponseStatusCode() +  "|cause=" + e);
+            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() +  "|cause=" + e);
             return e.toResponse();
         }
     }
+
+    /**
+     * GET method for retrieving the attachments of the logs matching a
+     * query as a zip archive, with a folder per log entry. Takes the query
+     * and paging parameters of <tt>GET /logs</tt>.
+     *
+     * @return HTTP Response, 404 if no matching log has an attachment
+     */
+    @GET
+    @Path("logs.zip")
+    @Produces("application/zip")
+    public Response queryArchive() throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        OlogImpl cm = OlogImpl.getInstance();
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        try {
+            Map<Long, Collection<XmlAttachment>> attachments = new LinkedHashMap<Long, Collection<XmlAttachment>>();
+            for (Log l : cm.findLogsByMultiMatch(uriInfo.getQueryParameters()).getLogList()) {
+                Collection<XmlAttachment> files = l.getXmlAttachments();
+                if (files != null && !files.isEmpty()) {
+                    attachments.put(l.getEntryId(), files);
+                }
+            }
+            Response r = archive(attachments, true, "logs.zip");
+            audit.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus()
+                    + "|returns " + attachments.size() + " entries");
+            return r;
+        } catch (CFException e) {
+            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() +  "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    private static Response archive(Map<Long, Collection<XmlAttachment>> attachments, boolean entryFolders, String name) {
+        if (attachments.isEmpty()) {
+            // nothing to download, as for a missing attachment
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(new AttachmentArchive(attachments, entryFolders), "application/zip")
+                .header("Content-Disposition", "attachment; filename=\"" + name + "\"")
+                .header("Cache-Control", CACHE_CONTROL)
+                .build();
+    }
+
+    /**
+     * GET method for retrieving an attachment, honouring conditional and
+     * single range requests.
+     *
+     * @param logId log id
+     * @param fileName attachment
+     * @param range <tt>bytes=first-last</tt> range to return
+     * @param ifRange ETag the range applies to
+     * @return HTTP Response, 200, 206, 304 or 416
+     */
+    @GET
+    @Path("{logId}/{fileName}")
+    public Response getFile(@Context Request request,
+                            @PathParam("logId") Long logId,
+                            @PathParam("fileName") String fileName,
+                            @HeaderParam("Range") String range,
+                            @HeaderParam("If-Range") String ifRange) {
+        return download(request, logId, fileName, false, range, ifRange);
+    }
     
     /**
-     * GET method for retrieving the list of attachments for a given log.
+     * GET method for retrieving the thumbnail of an attachment. Like a
+     * download, it is revalidated with its ETag on every use.
      *
-     * @return
+     * @param logId log id
+     * @param fileName attachment
+     * @param range <tt>bytes=first-last</tt> range to return
+     * @param ifRange ETag the range applies to
+     * @return HTTP Response, 200, 206, 304 or 416
      */
     @GET
     @Path("{logId}/{fileName}:thumbnail")
-    public Response getThumbnail(@PathParam("logId") Long logId, @PathParam("fileName") String fileName ) {
+    public Response getThumbnail(@Context Request request,
+                                 @PathParam("logId") Long logId,
+                                 @PathParam("fileName") String fileName,
+                                 @HeaderParam("Range") String range,
+                                 @HeaderParam("If-Range") String ifRange) {
+        return download(request, logId, fileName, true, range, ifRange);
+    }
+
+    /**
+     * Answers a download from the ETag (the content identity of the stored
+     * file) and last modification time before opening the content, and
+     * streams the requested bytes from the attachment store.
+     */
+    private Response download(Request request, Long logId, String fileName, boolean thumbnail, String range, String ifRange) {
         OlogImpl cm = OlogImpl.getInstance();
         String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
-        Attachment result;
+        Attachment result = null;
+        boolean streamed = false;
         try {
-            String filePath = "thumbnails/"+logId.toString();
-            result = cm.getAttachment(filePath, fileName);
+            result = cm.getAttachment(logId, fileName, thumbnail);
             Response r;
             if (result == null) {
                 r = Response.status(Response.Status.NOT_FOUND).build();
             } else {
-                r = Response.ok((Object)result.getContent()).type(result.getMimeType()).build();
+                EntityTag tag = new EntityTag(result.getContentIdentity());
+                long length = result.getFileSize();
+                Response.ResponseBuilder rb = result.getLastModified() == null
+                        ? request.evaluatePreconditions(tag)
+                        : request.evaluatePreconditions(result.getLastModified(), tag);
+                long[] bytes = null;
+                if (rb == null && range != null && (ifRange == null || ifRange.equals(tag.toString()))) {
+                    bytes = parseRange(range, length);
+                }
+                ContentOutput entity = null;
+                if (bytes != null && bytes.length == 0) {
+                    rb = Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header("Content-Range", "bytes */" + length);
+                } else if (bytes != null) {
+                    entity = entity(request, result, bytes[0], bytes[1] - bytes[0] + 1);
+                    rb = Response.status(PARTIAL_CONTENT)
+                            .entity(entity)
+                            .type(result.getMimeType())
+                            .header("Content-Range", "bytes " + bytes[0] + "-" + bytes[1] + "/" + length)
+                            .header("Content-Length", bytes[1] - bytes[0] + 1);
+                } else if (rb == null) {
+                    entity = entity(request, result, 0, length);
+                    rb = Response.ok(entity)
+                            .type(result.getMimeType())
+                            .header("Content-Length", length);
+                }
+                rb.tag(tag).header("Accept-Ranges", "bytes").header("Cache-Control", CACHE_CONTROL);
+                if (result.getLastModified() != null) {
+                    rb.lastModified(result.getLastModified());
+                }
+                r = rb.build();
+                streamed = entity != null;
             }
             audit.info( user+"|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
             return r;
@@ -118,6 +242,88 @@ public class AttachmentsResource {
             
             log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|" + e.getResponseStatusCode() +  "|cause=" + e);
             return e.toResponse();
+        } finally {
+            // the content of a streamed entity is disposed once written
+            if (result != null && !streamed) {
+                result.getStoredContent().dispose();
+            }
+        }
+    }
+
+    /**
+     * Entity of a download, null for a HEAD request, which writes none.
+     */
+    private static ContentOutput entity(Request request, Attachment result, long offset, long length) {
+        if ("HEAD".equals(request.getMethod())) {
+            return null;
+        }
+        return new ContentOutput(result.getStoredContent(), offset, length);
+    }
+
+    /**
+     * Parses a single byte range. Multiple ranges and malformed headers are
+     * ignored, and the full content is returned for them.
+     *
+     * @return first and last byte, an empty array if the range is not
+     * satisfiable, null to ignore the header
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (last < first && first < length) {
+                    return null;
+                }
+            }
+            if (first >= length || first < 0) {
+                return new long[0];
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a part of a stored file and disposes its content.
+     */
+    private static class ContentOutput implements StreamingOutput {
+
+        private final AttachmentContent content;
+        private final long offset;
+        private final long length;
+
+        private ContentOutput(AttachmentContent content, long offset, long length) {
+            this.content = content;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            try {
+                content.write(output, offset, length);
+            } finally {
+                content.dispose();
+            }
         }
     }
     
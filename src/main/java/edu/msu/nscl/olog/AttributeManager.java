@@ -71,6 +71,10 @@ public class AttributeManager {
      * @throws CFException wrapping an SQLException
      */
     public static Attribute findAttribute(Property property, String attributeName) throws CFException {
+        Attribute cached = NameCache.find(Attribute.class, NameCache.attributeKey(property.getName(), attributeName));
+        if (cached != null) {
+            return cached;
+        }
         em = JPAUtil.getEntityManagerFactory().createEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Attribute> cq = cb.createQuery(Attribute.class);
@@ -96,6 +100,9 @@ public class AttributeManager {
                 }
             }
 
+            if (result.getId() != null) {
+                NameCache.put(Attribute.class, NameCache.attributeKey(property.getName(), attributeName), result.getId());
+            }
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -128,6 +135,7 @@ public class AttributeManager {
                 newAttribute.setState(State.Active);
                 newAttribute.setProperty(property);
                 JPAUtil.save(newAttribute);
+                NameCache.put(Attribute.class, NameCache.attributeKey(property.getName(), attributeName), newAttribute.getId());
                 newAttribute = findAttribute(property, newAttribute.getName());
                 property.addAttribute(newAttribute);
                 property = (Property) JPAUtil.update(property);
@@ -0,0 +1,137 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a base64 encoded stream while it is read, holding no more than
+ * one buffer of input. Line breaks and other whitespace are skipped;
+ * decoding ends at the first padding character.
+ */
+public class Base64DecodingInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+    private final byte[] in = new byte[BUFFER_SIZE];
+    private final byte[] out = new byte[BUFFER_SIZE / 4 * 3 + 3];
+    private int outPos = 0;
+    private int outEnd = 0;
+    private int quantum = 0;
+    private int quantumLength = 0;
+    private boolean finished = false;
+
+    public Base64DecodingInputStream(InputStream encoded) {
+        super(encoded);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outPos == outEnd && !fill()) {
+            return -1;
+        }
+        return out[outPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (outPos == outEnd && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, outEnd - outPos);
+        System.arraycopy(out, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return outEnd - outPos;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (outPos == outEnd && !fill()) {
+                break;
+            }
+            int step = (int) Math.min(n - skipped, outEnd - outPos);
+            outPos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Decodes the next buffer of input.
+     *
+     * @return false at the end of the decoded data
+     */
+    private boolean fill() throws IOException {
+        outPos = 0;
+        outEnd = 0;
+        while (outEnd == 0 && !finished) {
+            int n = super.read(in, 0, in.length);
+            if (n < 0) {
+                finish();
+                break;
+            }
+            for (int i = 0; i < n && !finished; i++) {
+                int c = in[i];
+                if (c == '=') {
+                    finish();
+                } else if (c >= 0 && VALUES[c] >= 0) {
+                    quantum = (quantum << 6) | VALUES[c];
+                    if (++quantumLength == 4) {
+                        out[outEnd++] = (byte) (quantum >> 16);
+                        out[outEnd++] = (byte) (quantum >> 8);
+                        out[outEnd++] = (byte) quantum;
+                        quantum = 0;
+                        quantumLength = 0;
+                    }
+                } else if (!Character.isWhitespace(c)) {
+                    throw new IOException("Invalid base64 character: " + (char) c);
+                }
+            }
+        }
+        return outEnd > 0;
+    }
+
+    /**
+     * Writes the bytes of a final, padded quantum.
+     */
+    private void finish() throws IOException {
+        finished = true;
+        if (quantumLength == 1) {
+            throw new IOException("Truncated base64 data");
+        }
+        if (quantumLength == 2) {
+            out[outEnd++] = (byte) (quantum >> 4);
+        } else if (quantumLength == 3) {
+            out[outEnd++] = (byte) (quantum >> 10);
+            out[outEnd++] = (byte) (quantum >> 2);
+        }
+        quantumLength = 0;
+    }
+}
@@ -25,6 +25,10 @@ public class Entry implements Serializable, Comparable<Entry> {
     @Column(name = "created", nullable = false, insertable = true, updatable = false)
     @Temporal(TemporalType.TIMESTAMP)
     private Date createdDate;
+    @Column(name = "version", nullable = false)
+    private Integer version = 0;
+    @Column(name = "current_log_id")
+    private Long currentLogId;
     @OneToMany(mappedBy = "entry")
     private List<Log> logs = new ArrayList<Log>();
 
@@ -75,6 +79,42 @@ public class Entry implements Serializable, Comparable<Entry> {
         this.createdDate = createdDate;
     }
 
+    /**
+     * Getter for the number of versions (logs) of the entry.
+     *
+     * @return version
+     */
+    public Integer getVersion() {
+        return version;
+    }
+
+    /**
+     * Setter for the number of versions of the entry.
+     *
+     * @param version
+     */
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
+    /**
+     * Getter for the id of the current (active or last) log of the entry.
+     *
+     * @return currentLogId
+     */
+    public Long getCurrentLogId() {
+        return currentLogId;
+    }
+
+    /**
+     * Setter for the id of the current log of the entry.
+     *
+     * @param currentLogId
+     */
+    public void setCurrentLogId(Long currentLogId) {
+        this.currentLogId = currentLogId;
+    }
+
     /**
      * @return the logs
      */
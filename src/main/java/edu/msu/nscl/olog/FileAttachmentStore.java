@@ -0,0 +1,339 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Content-addressed attachment store in a local directory.
+ *
+ * The content of a file is kept once under <tt>blobs/</tt>, named by its
+ * SHA-256 hash, which is also its content identity. Each attachment is a
+ * small properties file naming the blob, in the entry folder given by
+ * {@link AttachmentLayout#folderPath} under <tt>entries/</tt>. Removing an
+ * attachment only removes its properties file, since the blob may be
+ * shared with other attachments; {@link #sweep} deletes the blobs no
+ * properties file names any more.
+ *
+ * Ranges are written with {@link FileChannel#transferTo} from their offset,
+ * without reading the bytes before it. The servlet output is not a channel,
+ * so the target is the {@link Channels#newChannel(OutputStream)} wrapper:
+ * the JDK reads into a temporary direct buffer and the wrapper copies it
+ * through a heap byte array into the stream. This is not zero-copy.
+ */
+public class FileAttachmentStore implements AttachmentStore {
+
+    private static final String SUFFIX = ".properties";
+    /**
+     * Age below which an unnamed blob is kept by {@link #sweep}, in
+     * milliseconds: an upload may not have written its properties file yet.
+     */
+    private static final long SWEEP_GRACE = 3600000L;
+    private final Object blobLock = new Object();
+    private final File blobs;
+    private final File entries;
+    private final File tmp;
+
+    /**
+     * @param directory root directory, created if needed
+     */
+    public FileAttachmentStore(File directory) {
+        this.blobs = new File(directory, "blobs");
+        this.entries = new File(directory, "entries");
+        this.tmp = new File(directory, "tmp");
+        blobs.mkdirs();
+        entries.mkdirs();
+        tmp.mkdirs();
+    }
+
+    @Override
+    public void store(Long entryId, String fileName, String mimeType, InputStream content, boolean thumbnail) throws CFException {
+        File descriptor = descriptor(entryId, fileName, thumbnail);
+        if (descriptor.exists()) {
+            throw new CFException(Response.Status.CONFLICT,
+                    "Log entry " + entryId + " already has a file " + fileName);
+        }
+        File upload = null;
+        try {
+            upload = File.createTempFile("upload", null, tmp);
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            long size;
+            OutputStream out = new FileOutputStream(upload);
+            try {
+                size = copy(new DigestInputStream(content, sha), out);
+            } finally {
+                out.close();
+            }
+            String hash = DatatypeConverter.printHexBinary(sha.digest()).toLowerCase();
+            File blob = blob(hash);
+            synchronized (blobLock) {
+                // touching a shared blob keeps it from the sweep
+                if (blob.setLastModified(System.currentTimeMillis())) {
+                    upload.delete();
+                } else {
+                    blob.getParentFile().mkdirs();
+                    if (!upload.renameTo(blob) && !blob.exists()) {
+                        throw new IOException("Could not move " + upload + " to " + blob);
+                    }
+                }
+            }
+            upload = null;
+
+            Properties p = new Properties();
+            p.setProperty("name", fileName);
+            p.setProperty("mimeType", mimeType);
+            p.setProperty("size", String.valueOf(size));
+            p.setProperty("hash", hash);
+            p.setProperty("modified", String.valueOf(System.currentTimeMillis()));
+            descriptor.getParentFile().mkdirs();
+            File written = File.createTempFile("descriptor", null, tmp);
+            out = new FileOutputStream(written);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!written.renameTo(descriptor)) {
+                written.delete();
+                throw new CFException(Response.Status.CONFLICT,
+                        "Log entry " + entryId + " already has a file " + fileName);
+            }
+        } catch (IOException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + entryId + " could not store " + fileName + ". " + e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (upload != null) {
+                upload.delete();
+            }
+        }
+    }
+
+    @Override
+    public Attachment find(Long entryId, String fileName, boolean thumbnail) throws CFException {
+        File descriptor = descriptor(entryId, fileName, thumbnail);
+        if (!descriptor.exists()) {
+            return null;
+        }
+        Attachment attachment = read(entryId, descriptor);
+        attachment.setStoredContent(new FileContent(blob(attachment.getContentIdentity())));
+        return attachment;
+    }
+
+    @Override
+    public boolean exists(Long entryId, String fileName, boolean thumbnail) {
+        return descriptor(entryId, fileName, thumbnail).exists();
+    }
+
+    @Override
+    public Map<Long, List<Attachment>> list(Collection<Long> entryIds, boolean thumbnail) throws CFException {
+        Map<Long, List<Attachment>> result = new HashMap<Long, List<Attachment>>();
+        for (Long entryId : entryIds) {
+            File[] descriptors = new File(entries, AttachmentLayout.folderPath(entryId, thumbnail)).listFiles();
+            if (descriptors == null || descriptors.length == 0) {
+                continue;
+            }
+            Arrays.sort(descriptors);
+            List<Attachment> files = new ArrayList<Attachment>();
+            for (File descriptor : descriptors) {
+                if (descriptor.getName().endsWith(SUFFIX)) {
+                    files.add(read(entryId, descriptor));
+                }
+            }
+            result.put(entryId, files);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(Long entryId, String fileName, boolean thumbnail) throws CFException {
+        return descriptor(entryId, fileName, thumbnail).delete();
+    }
+
+    /**
+     * Attachments in this store are not indexed.
+     */
+    @Override
+    public Set<Long> search(String term) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Deletes the blobs that no properties file names, unless written or
+     * reused within {@link #SWEEP_GRACE}. Any properties file that cannot be
+     * read stops the sweep before a blob is deleted.
+     *
+     * @return number of blobs deleted
+     */
+    public long sweep() throws CFException {
+        long before = System.currentTimeMillis() - SWEEP_GRACE;
+        Set<String> named = new HashSet<String>();
+        try {
+            mark(entries, named);
+        } catch (IOException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Could not list the attachments to sweep. " + e);
+        }
+        long deleted = 0;
+        for (File first : listDirectories(blobs)) {
+            for (File second : listDirectories(first)) {
+                File[] files = second.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File blob : files) {
+                    if (named.contains(blob.getName())) {
+                        continue;
+                    }
+                    synchronized (blobLock) {
+                        if (blob.lastModified() < before && blob.delete()) {
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Adds the blob hashes of the properties files below a folder.
+     */
+    private static void mark(File folder, Set<String> named) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + folder);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                mark(file, named);
+            } else if (file.getName().endsWith(SUFFIX)) {
+                String hash = load(file).getProperty("hash");
+                if (hash == null) {
+                    throw new IOException(file + " names no blob");
+                }
+                named.add(hash);
+            }
+        }
+    }
+
+    private static File[] listDirectories(File folder) {
+        File[] files = folder.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private File descriptor(Long entryId, String fileName, boolean thumbnail) {
+        try {
+            return new File(new File(entries, AttachmentLayout.folderPath(entryId, thumbnail)),
+                    URLEncoder.encode(fileName, "UTF-8") + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File blob(String hash) {
+        return new File(new File(new File(blobs, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    private static Properties load(File descriptor) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(descriptor);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return p;
+    }
+
+    private static Attachment read(Long entryId, File descriptor) throws CFException {
+        try {
+            Properties p = load(descriptor);
+            String name = descriptor.getName();
+            Attachment attachment = new Attachment();
+            attachment.setFileName(p.getProperty("name",
+                    URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), "UTF-8")));
+            attachment.setMimeType(p.getProperty("mimeType"));
+            attachment.setFileSize(Long.valueOf(p.getProperty("size")));
+            attachment.setContentIdentity(p.getProperty("hash"));
+            attachment.setLastModified(new Date(Long.parseLong(p.getProperty("modified"))));
+            return attachment;
+        } catch (IOException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + entryId + " could not read " + descriptor.getName() + ". " + e);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            size += n;
+        }
+        return size;
+    }
+
+    private static class FileContent implements AttachmentContent {
+
+        private final File file;
+
+        private FileContent(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public void write(OutputStream out, long offset, long length) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = offset;
+                long end = offset + length;
+                while (position < end) {
+                    long n = channel.transferTo(position, end - position, target);
+                    if (n <= 0) {
+                        throw new EOFException("Attachment " + file + " is shorter than " + end + " bytes");
+                    }
+                    position += n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.core.Response;
+
+/**
+ * Bounded pool of JCR sessions. A session is used by one request at a time:
+ * it is checked out, used and released, which discards any change it did not
+ * save. Sessions are logged in on first use and replaced when no longer live.
+ */
+public class JCRSessionPool {
+
+    /**
+     * Longest wait for a free session, in milliseconds.
+     */
+    private static final long CHECKOUT_TIMEOUT = 30000L;
+    private static final Logger log = Logger.getLogger(JCRSessionPool.class.getName());
+    private final Repository repository;
+    private final Credentials credentials;
+    private final int size;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<Session>();
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param repository repository to login to
+     * @param credentials credentials of the sessions
+     * @param size maximum number of sessions
+     */
+    public JCRSessionPool(Repository repository, Credentials credentials, int size) {
+        this.repository = repository;
+        this.credentials = credentials;
+        this.size = size;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Checks out a session, waiting while all are in use.
+     *
+     * @return session, to be passed to {@link #release}
+     * @throws CFException 503 if no session is free in time
+     * @throws RepositoryException if a new session cannot login
+     */
+    public Session checkout() throws CFException, RepositoryException {
+        checkouts.incrementAndGet();
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            long start = System.currentTimeMillis();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(CHECKOUT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            long waited = System.currentTimeMillis() - start;
+            waitTime.addAndGet(waited);
+            long max = maxWaitTime.get();
+            while (waited > max && !maxWaitTime.compareAndSet(max, waited)) {
+                max = maxWaitTime.get();
+            }
+            if (!acquired) {
+                timeouts.incrementAndGet();
+                throw new CFException(Response.Status.SERVICE_UNAVAILABLE,
+                        "No repository session available");
+            }
+        }
+        try {
+            Session session = idle.poll();
+            while (session != null && !session.isLive()) {
+                session = idle.poll();
+            }
+            if (session == null) {
+                session = repository.login(credentials);
+            }
+            return session;
+        } catch (RepositoryException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a session to the pool, dropping its unsaved changes.
+     *
+     * @param session checked out session, ignored if null
+     */
+    public void release(Session session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            if (session.isLive()) {
+                session.refresh(false);
+                idle.offer(session);
+            }
+        } catch (RepositoryException e) {
+            log.log(Level.WARNING, "Dropping repository session", e);
+            session.logout();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Logs out the idle sessions.
+     */
+    public void close() {
+        Session session;
+        while ((session = idle.poll()) != null) {
+            session.logout();
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getInUse() {
+        return size - permits.availablePermits();
+    }
+
+    public long getCheckouts() {
+        return checkouts.get();
+    }
+
+    /**
+     * @return number of checkouts that found the pool saturated
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitTime() {
+        return waitTime.get();
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+}
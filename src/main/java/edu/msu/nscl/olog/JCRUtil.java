@@ -8,9 +8,9 @@ package edu.msu.nscl.olog;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.jcr.GuestCredentials;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
 import javax.servlet.ServletContext;
 import org.apache.jackrabbit.core.RepositoryImpl;
@@ -20,8 +20,11 @@ import org.apache.jackrabbit.j2ee.RepositoryAccessServlet;
 
 public class JCRUtil extends OlogContextListener {
     private static Repository repository;
-    private static Session session;
+    private static JCRSessionPool readPool;
+    private static JCRSessionPool writePool;
     private static final String WEBINF = "WEB-INF";
+    private static final int READ_POOL_SIZE = 8;
+    private static final int WRITE_POOL_SIZE = 4;
 
     /**
      * Create an instance of JCRUtil
@@ -35,10 +38,8 @@ public class JCRUtil extends OlogContextListener {
             String dir = "jackrabbit";
             RepositoryConfig config = RepositoryConfig.create(xml, dir);
             repository = RepositoryImpl.create(config);
-            
-            SimpleCredentials adminCred = new 
-            SimpleCredentials("admin", new char[0]); 
-            session = repository.login(adminCred);
+            readPool = new JCRSessionPool(repository, new GuestCredentials(), READ_POOL_SIZE);
+            writePool = new JCRSessionPool(repository, new SimpleCredentials("admin", new char[0]), WRITE_POOL_SIZE);
             
         } catch (RepositoryException ex) {
             Logger.getLogger(JCRUtil.class.getName()).log(Level.SEVERE, null, ex);
@@ -50,9 +51,33 @@ public class JCRUtil extends OlogContextListener {
         return repository;
     }
     
-    public static Session getSession() {
+    /**
+     * @return pool of the read-only (anonymous) sessions used to find and
+     * list attachments
+     */
+    public static JCRSessionPool getReadPool() {
+
+        return readPool;
+    }
+
+    /**
+     * @return pool of the sessions used to add and remove attachments
+     */
+    public static JCRSessionPool getWritePool() {
+
+        return writePool;
+    }
 
-        return session;
+    /**
+     * Logs out the pooled sessions before the repository shuts down.
+     */
+    public static void close() {
+        if (readPool != null) {
+            readPool.close();
+        }
+        if (writePool != null) {
+            writePool.close();
+        }
     }
     
 
@@ -0,0 +1,320 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import javax.jcr.*;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitValue;
+
+/**
+ * Attachment store in the Jackrabbit repository, with the folder layout of
+ * {@link AttachmentLayout}. Each call checks a session out of the read or
+ * write pool of {@link JCRUtil} and returns it before the call ends; the
+ * content of a found file is read in a session of its own, outside the
+ * pools, so that slow downloads do not hold pooled sessions.
+ */
+public class JcrAttachmentStore implements AttachmentStore {
+
+    @Override
+    public void store(Long entryId, String fileName, String mimeType, InputStream content, boolean thumbnail) throws CFException {
+        JCRSessionPool pool = JCRUtil.getWritePool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            Node rn = session.getRootNode();
+            if (AttachmentLayout.findFile(rn, entryId, fileName, thumbnail) != null) {
+                throw new ItemExistsException(fileName);
+            }
+            Node folderNode = AttachmentLayout.getFolder(rn, entryId, thumbnail);
+            Node fileNode = folderNode.addNode(fileName, JcrConstants.NT_FILE);
+            Node resNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+            resNode.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
+            resNode.setProperty(JcrConstants.JCR_ENCODING, "");
+
+            Binary binFile = session.getValueFactory().createBinary(content);
+            resNode.setProperty(JcrConstants.JCR_DATA, binFile);
+            binFile.dispose();
+
+            session.save();
+        } catch (LoginException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entry " + entryId + " could not login to repository. " + ex);
+        } catch (RepositoryException ex) {
+            throw new CFException(Response.Status.CONFLICT,
+                    "Log entry " + entryId + " could not put item in repository. " + ex);
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    @Override
+    public Attachment find(Long entryId, String fileName, boolean thumbnail) throws CFException {
+        JCRSessionPool pool = JCRUtil.getReadPool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            Node fileNode = AttachmentLayout.findFile(session.getRootNode(), entryId, fileName, thumbnail);
+            if (fileNode == null) {
+                return null;
+            }
+            Node contentNode = fileNode.getNode(JcrConstants.JCR_CONTENT);
+            Value data = contentNode.getProperty(JcrConstants.JCR_DATA).getValue();
+            Date lastModified = null;
+            if (contentNode.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+                lastModified = contentNode.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate().getTime();
+            }
+
+            Binary bin = data.getBinary();
+            String identity = null;
+            if (data instanceof JackrabbitValue) {
+                identity = ((JackrabbitValue) data).getContentIdentity();
+            }
+            if (identity == null) {
+                // content kept in the persistence manager, not the data store
+                identity = md5(fileNode.getPath() + ":" + bin.getSize() + ":" + (lastModified == null ? 0 : lastModified.getTime()));
+            }
+            Attachment attachment = new Attachment();
+            attachment.setFileName(fileName);
+            attachment.setFileSize(bin.getSize());
+            attachment.setContentIdentity(identity);
+            attachment.setLastModified(lastModified);
+            attachment.setMimeType(contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString());
+            bin.dispose();
+            attachment.setStoredContent(new BinaryContent(entryId, fileName, thumbnail));
+            return attachment;
+
+        } catch (LoginException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entry " + entryId + " could not login to repository. " + ex);
+        } catch (RepositoryException ex) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entry " + entryId + " could not find item in repository. " + ex);
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    @Override
+    public boolean exists(Long entryId, String fileName, boolean thumbnail) throws CFException {
+        JCRSessionPool pool = JCRUtil.getReadPool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            return AttachmentLayout.findFile(session.getRootNode(), entryId, fileName, thumbnail) != null;
+        } catch (LoginException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entry " + entryId + " could not login to repository. " + ex);
+        } catch (RepositoryException ex) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entry " + entryId + " could not find item in repository. " + ex);
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    @Override
+    public Map<Long, List<Attachment>> list(Collection<Long> entryIds, boolean thumbnail) throws CFException {
+        Map<Long, List<Attachment>> result = new HashMap<Long, List<Attachment>>();
+        JCRSessionPool pool = JCRUtil.getReadPool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            Node rn = session.getRootNode();
+            for (Long entryId : entryIds) {
+                List<Node> folders = AttachmentLayout.findFolders(rn, entryId, thumbnail);
+                if (folders.isEmpty()) {
+                    continue;
+                }
+                List<Attachment> files = new ArrayList<Attachment>();
+                for (Node folderNode : folders) {
+                    NodeIterator nodes = folderNode.getNodes();
+                    while (nodes.hasNext()) {
+                        Node contentNode = nodes.nextNode();
+                        Node resNode = contentNode.getNode(JcrConstants.JCR_CONTENT);
+                        Attachment attachment = new Attachment();
+                        attachment.setFileName(contentNode.getName());
+                        attachment.setMimeType(resNode.getProperty(JcrConstants.JCR_MIMETYPE).getString());
+                        attachment.setFileSize(resNode.getProperty(JcrConstants.JCR_DATA).getLength());
+                        files.add(attachment);
+                    }
+                }
+                result.put(entryId, files);
+            }
+            return result;
+
+        } catch (LoginException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entries " + entryIds + " could not login to repository. " + ex);
+        } catch (RepositoryException ex) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entries " + entryIds + " could not find item in repository. " + ex);
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    @Override
+    public boolean remove(Long entryId, String fileName, boolean thumbnail) throws CFException {
+        JCRSessionPool pool = JCRUtil.getWritePool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            Node contentNode = AttachmentLayout.findFile(session.getRootNode(), entryId, fileName, thumbnail);
+            if (contentNode == null) {
+                return false;
+            }
+            contentNode.remove();
+            session.save();
+            return true;
+
+        } catch (LoginException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entry " + entryId + " could not login to repository. " + ex);
+        } catch (RepositoryException ex) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entry " + entryId + " could not find item in repository. " + ex);
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    @Override
+    public Set<Long> search(String term) throws CFException {
+        Set<Long> ids = new HashSet<Long>();
+        JCRSessionPool pool = JCRUtil.getReadPool();
+        Session session = null;
+        try {
+            session = pool.checkout();
+            QueryManager qm = session.getWorkspace().getQueryManager();
+            Query query = qm.createQuery("SELECT * FROM [nt:resource] AS r WHERE CONTAINS(r.*, $term)", Query.JCR_SQL2);
+            query.bindValue("term", session.getValueFactory().createValue(term));
+            NodeIterator ni = query.execute().getNodes();
+            while (ni.hasNext()) {
+                Node node = ni.nextNode();
+                if (AttachmentLayout.isThumbnail(node.getPath())) {
+                    continue;
+                }
+                try {
+                    ids.add(Long.valueOf(node.getParent().getParent().getName()));
+                } catch (NumberFormatException e) {
+                    // not an attachment folder
+                }
+            }
+        } catch (LoginException e) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Search: " + term + " could not login to repository. " + e);
+        } catch (RepositoryException e) {
+            throw new CFException(Response.Status.CONFLICT,
+                    "Search: " + term + " could not put item in repository. " + e);
+        } finally {
+            pool.release(session);
+        }
+        return ids;
+    }
+
+    /**
+     * The session pools are closed by {@link JCRUtil} with the repository.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static String md5(String s) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return DatatypeConverter.printHexBinary(md5.digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Content of a JCR binary, read like a file: each read logs in a
+     * read-only session of its own, outside the pools, and logs it out once
+     * the stream is closed. Parts are written by skipping on the stream,
+     * which seeks for content in the file data store.
+     */
+    private static class BinaryContent implements AttachmentContent {
+
+        private final Long entryId;
+        private final String fileName;
+        private final boolean thumbnail;
+
+        private BinaryContent(Long entryId, String fileName, boolean thumbnail) {
+            this.entryId = entryId;
+            this.fileName = fileName;
+            this.thumbnail = thumbnail;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            Session session = null;
+            try {
+                session = JCRUtil.getRepository().login(new GuestCredentials());
+                Node fileNode = AttachmentLayout.findFile(session.getRootNode(), entryId, fileName, thumbnail);
+                if (fileNode == null) {
+                    throw new FileNotFoundException("Log entry " + entryId + " has no attachment " + fileName);
+                }
+                final Binary binary = fileNode.getNode(JcrConstants.JCR_CONTENT)
+                        .getProperty(JcrConstants.JCR_DATA).getBinary();
+                final Session owner = session;
+                InputStream in = new FilterInputStream(binary.getStream()) {
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            binary.dispose();
+                            owner.logout();
+                        }
+                    }
+                };
+                session = null;
+                return in;
+            } catch (RepositoryException e) {
+                throw new IOException("Could not read attachment", e);
+            } finally {
+                if (session != null) {
+                    session.logout();
+                }
+            }
+        }
+
+        @Override
+        public void write(OutputStream out, long offset, long length) throws IOException {
+            InputStream in = open();
+            try {
+                IOUtils.skipFully(in, offset);
+                IOUtils.copyLarge(in, out, 0, length);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Nothing is held between reads.
+         */
+        @Override
+        public void dispose() {
+        }
+    }
+}
@@ -50,6 +50,12 @@ public class Log implements Serializable, Comparable<Log> {
     @Column(name = "description", nullable = false, insertable = true, updatable = false)
     private String description;
     
+    @Column(name = "description_unchanged", nullable = false)
+    private boolean descriptionUnchanged = false;
+    
+    @Column(name = "attributes_unchanged", nullable = false)
+    private boolean attributesUnchanged = false;
+    
     @Transient
     private Collection<XmlProperty> properties = new ArrayList<XmlProperty>();
     
@@ -298,6 +304,30 @@ public class Log implements Serializable, Comparable<Log> {
         this.description = description;
     }
 
+    /**
+     * @return true for an inactive version whose description is not stored
+     * because it equals the one of the next version
+     */
+    public boolean isDescriptionUnchanged() {
+        return descriptionUnchanged;
+    }
+
+    public void setDescriptionUnchanged(boolean descriptionUnchanged) {
+        this.descriptionUnchanged = descriptionUnchanged;
+    }
+
+    /**
+     * @return true for an inactive version whose attributes are not stored
+     * because they equal the ones of the next version
+     */
+    public boolean isAttributesUnchanged() {
+        return attributesUnchanged;
+    }
+
+    public void setAttributesUnchanged(boolean attributesUnchanged) {
+        this.attributesUnchanged = attributesUnchanged;
+    }
+
     /**
      * Getter for log's XmlProperties.
      *
@@ -0,0 +1,92 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived cache of exact log search counts, keyed by the normalized
+ * filter parameters. Any write to logs or attachments clears it, since
+ * attachment hits take part in searches; counts computed while a write was
+ * in progress are not stored.
+ */
+public class LogCountCache {
+
+    /**
+     * Time an exact count stays valid, in milliseconds.
+     */
+    private static final long TTL = 30000L;
+    /**
+     * Upper bound on cached queries; the cache is cleared when exceeded.
+     */
+    private static final int MAX_ENTRIES = 1000;
+    private static final ConcurrentMap<String, CachedCount> counts = new ConcurrentHashMap<String, CachedCount>();
+    private static final AtomicLong generation = new AtomicLong();
+
+    private LogCountCache() {
+    }
+
+    private static class CachedCount {
+
+        private final long count;
+        private final long expires;
+
+        private CachedCount(long count, long expires) {
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Returns the cached count of a query.
+     *
+     * @param key normalized query
+     * @param includeExpired also return counts past their time to live
+     * @return count or null if not cached
+     */
+    public static Long get(String key, boolean includeExpired) {
+        CachedCount cached = counts.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (!includeExpired && cached.expires < System.currentTimeMillis()) {
+            return null;
+        }
+        return cached.count;
+    }
+
+    /**
+     * @return current generation, to be read before computing a count
+     */
+    public static long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a count unless logs were written since it was computed.
+     *
+     * @param key normalized query
+     * @param count exact count
+     * @param countGeneration generation read before computing the count
+     */
+    public static void put(String key, Long count, long countGeneration) {
+        if (counts.size() >= MAX_ENTRIES) {
+            counts.clear();
+        }
+        if (generation.get() == countGeneration) {
+            counts.put(key, new CachedCount(count, System.currentTimeMillis() + TTL));
+        }
+    }
+
+    /**
+     * Drops all cached counts, called after logs were created or changed.
+     */
+    public static void invalidate() {
+        generation.incrementAndGet();
+        counts.clear();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * Version history of a log entry, stored as reverse deltas.
+ *
+ * When a version is replaced, its description and its attribute rows are
+ * dropped if they equal those of the replacing version, which is flagged
+ * with <tt>description_unchanged</tt> / <tt>attributes_unchanged</tt>. The
+ * active version always holds its full content, so searches and reads of
+ * current logs are unaffected; the history is read newest first, carrying
+ * the content of each version back to the older ones.
+ */
+public class LogHistory {
+
+    /**
+     * Number of versions read per query.
+     */
+    private static final int PAGE_SIZE = 100;
+    private static final String COMPACT_DESCRIPTION = "UPDATE logs o JOIN logs n ON n.id = ?"
+            + " SET o.description = '', o.description_unchanged = 1"
+            + " WHERE o.id = ? AND BINARY o.description = BINARY n.description";
+    private static final String COMPARE_ATTRIBUTES = "SELECT"
+            + " (SELECT COUNT(*) FROM logs_attributes WHERE log_id = ?),"
+            + " (SELECT COUNT(*) FROM logs_attributes WHERE log_id = ?),"
+            + " (SELECT COUNT(*) FROM logs_attributes o JOIN logs_attributes n"
+            + " ON n.attribute_id = o.attribute_id AND n.grouping_num = o.grouping_num AND BINARY n.value = BINARY o.value"
+            + " WHERE o.log_id = ? AND n.log_id = ?)";
+    private static final String DELETE_ATTRIBUTES = "DELETE FROM logs_attributes WHERE log_id = ?";
+    private static final String MARK_ATTRIBUTES = "UPDATE logs SET attributes_unchanged = 1 WHERE id = ?";
+    private final Long entryId;
+    private Iterator<Log> page = Collections.<Log>emptyList().iterator();
+    private Long last = Long.MAX_VALUE;
+    private boolean exhausted = false;
+    private Integer version;
+    private String description;
+    private Collection<XmlProperty> properties;
+
+    /**
+     * @param entryId log entry
+     */
+    public LogHistory(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    /**
+     * Returns the next older version, with its compacted content filled in
+     * from the newer versions.
+     *
+     * @return version, null after the oldest one
+     * @throws CFException wrapping an SQLException
+     */
+    public Log next() throws CFException {
+        if (!page.hasNext()) {
+            if (exhausted) {
+                return null;
+            }
+            List<Log> logs = LogManager.findVersions(entryId, last, PAGE_SIZE);
+            exhausted = logs.size() < PAGE_SIZE;
+            if (logs.isEmpty()) {
+                return null;
+            }
+            last = logs.get(logs.size() - 1).getId();
+            page = logs.iterator();
+        }
+        Log log = page.next();
+        if (version == null) {
+            version = Integer.valueOf(log.getVersion());
+        }
+        log.setVersion(String.valueOf(version--));
+        if (log.isDescriptionUnchanged()) {
+            log.setDescription(description);
+        } else {
+            description = log.getDescription();
+        }
+        if (log.isAttributesUnchanged()) {
+            log.setXmlProperties(properties);
+        } else {
+            properties = log.getXmlProperties();
+        }
+        return log;
+    }
+
+    /**
+     * Drops the content of a replaced version that equals the content of
+     * the version replacing it. Runs in the transaction of the replacement.
+     *
+     * @param em entity manager with the replacing version flushed
+     * @param previousLogId replaced version
+     * @param logId replacing version
+     */
+    public static void compact(EntityManager em, Long previousLogId, Long logId) {
+        em.createNativeQuery(COMPACT_DESCRIPTION)
+                .setParameter(1, logId)
+                .setParameter(2, previousLogId)
+                .executeUpdate();
+        Object[] counts = (Object[]) em.createNativeQuery(COMPARE_ATTRIBUTES)
+                .setParameter(1, previousLogId)
+                .setParameter(2, logId)
+                .setParameter(3, previousLogId)
+                .setParameter(4, logId)
+                .getSingleResult();
+        if (sameAttributes(((Number) counts[0]).longValue(), ((Number) counts[1]).longValue(), ((Number) counts[2]).longValue())) {
+            em.createNativeQuery(DELETE_ATTRIBUTES).setParameter(1, previousLogId).executeUpdate();
+            em.createNativeQuery(MARK_ATTRIBUTES).setParameter(1, previousLogId).executeUpdate();
+        }
+    }
+
+    /**
+     * Same as {@link #compact(EntityManager, Long, Long)} on a JDBC
+     * connection.
+     */
+    public static void compact(Connection con, Long previousLogId, Long logId) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(COMPACT_DESCRIPTION);
+        ps.setLong(1, logId);
+        ps.setLong(2, previousLogId);
+        ps.executeUpdate();
+        ps.close();
+        ps = con.prepareStatement(COMPARE_ATTRIBUTES);
+        ps.setLong(1, previousLogId);
+        ps.setLong(2, logId);
+        ps.setLong(3, previousLogId);
+        ps.setLong(4, logId);
+        ResultSet rs = ps.executeQuery();
+        rs.next();
+        boolean same = sameAttributes(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+        ps.close();
+        if (same) {
+            ps = con.prepareStatement(DELETE_ATTRIBUTES);
+            ps.setLong(1, previousLogId);
+            ps.executeUpdate();
+            ps.close();
+            ps = con.prepareStatement(MARK_ATTRIBUTES);
+            ps.setLong(1, previousLogId);
+            ps.executeUpdate();
+            ps.close();
+        }
+    }
+
+    private static boolean sameAttributes(long previous, long current, long matching) {
+        return previous == current && matching == previous;
+    }
+}
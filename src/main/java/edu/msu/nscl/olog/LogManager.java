@@ -4,14 +4,20 @@
  */
 package edu.msu.nscl.olog;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import java.sql.*;
 import java.util.*;
+import java.util.Date;
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.annotations.BatchFetchType;
 
 /**
  *
@@ -20,6 +26,14 @@ import javax.ws.rs.core.Response;
 public class LogManager {
 
     private static EntityManager em = null;
+    /**
+     * Number of log ids loaded per query when hydrating a page of results.
+     */
+    private static final int HYDRATION_BATCH_SIZE = 500;
+    /**
+     * Smallest and largest id of the entries created between two dates.
+     */
+    static final String ENTRY_ID_RANGE = "SELECT MIN(id), MAX(id) FROM entries WHERE created >= ? AND created <= ?";
 
     private LogManager() {
     }
@@ -61,280 +75,481 @@ public class LogManager {
         }
     }
 
+    /**
+     * Finds logs matching the query parameters.
+     *
+     * The query runs in two phases: the first selects only the ids of the
+     * matching logs (one page of them), joining just the tables the filters
+     * need; the second loads the full logs for those ids in batches, so the
+     * association tables are never multiplied into the paginated result set.
+     *
+     * @param matches multivalued map of search parameters
+     * @return Logs
+     * @throws CFException wrapping an SQLException
+     */
     public static Logs findLog(MultivaluedMap<String, String> matches) throws CFException {
+        LogQuery query = LogQuery.parse(matches);
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            Logs result = new Logs();
 
+            if (query.hasDateRange()) {
+                query.setEntryIdRange(findEntryIdRange(em, query));
+                if (query.getEntryIdRange()[0] == null) {
+                    result.setCount(0L);
+                    return result;
+                }
+            }
+            query.setAttachmentHits(findAttachmentHits(query));
+            query.setIndexHits(findIndexHits(query));
+            query.setIndexHitKeys(stageIndexHits(query));
+            if (!hasCandidates(query)) {
+                result.setCount(0L);
+                return result;
+            }
+            result.setCount(countLogs(em, query));
+            if (query.isEmpty()) {
+                return result;
+            }
 
-        List<String> log_patterns = new ArrayList();
-        List<String> logbook_matches = new ArrayList();
-        List<String> logbook_patterns = new ArrayList();
-        List<String> tag_matches = new ArrayList();
-        List<String> tag_patterns = new ArrayList();
-        List<String> property_matches = new ArrayList();
-        List<String> property_patterns = new ArrayList();
-        Multimap<String, String> date_matches = ArrayListMultimap.create();
-        Multimap<String, String> paginate_matches = ArrayListMultimap.create();
-        Multimap<String, String> value_patterns = ArrayListMultimap.create();
-        Boolean empty = false;
+            List<Object[]> rows = findLogRows(em, query);
+            if (query.hasCursor() && query.getLimit() != null && rows.size() > query.getLimit()) {
+                rows = rows.subList(0, query.getLimit());
+                Object[] last = rows.get(rows.size() - 1);
+                result.setNext(LogQuery.encodeCursor((Date) last[1], (Long) last[2]));
+            }
+            List<Long> ids = new ArrayList<Long>(rows.size());
+            for (Object[] row : rows) {
+                ids.add((Long) row[0]);
+            }
 
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<Log> cq = cb.createQuery(Log.class);
-        Root<Log> from = cq.from(Log.class);
-        Join<Log, Entry> entry = from.join(Log_.entry, JoinType.LEFT);
-        SetJoin<Log, Tag> tags = from.join(Log_.tags, JoinType.LEFT);
-        SetJoin<Log, Logbook> logbooks = from.join(Log_.logbooks, JoinType.LEFT);
-        Join<Attribute, Property> property = from.join(Log_.attributes, JoinType.LEFT).join(LogAttribute_.attribute, JoinType.LEFT).join(Attribute_.property, JoinType.LEFT);
-        Join<LogAttribute, Attribute> attribute = from.join(Log_.attributes, JoinType.LEFT).join(LogAttribute_.attribute, JoinType.LEFT);
-        Join<Log, LogAttribute> logAttribute = from.join(Log_.attributes, JoinType.LEFT);
-
-        for (Map.Entry<String, List<String>> match : matches.entrySet()) {
-            String key = match.getKey().toLowerCase();
-            Collection<String> matchesValues = match.getValue();
-            if (key.equals("search")) {
-                for (String m : matchesValues) {
-                    if (m.contains("?") || m.contains("*")) {
-                        if (m.contains("\\?") || m.contains("\\*")) {
-                            m = m.replace("\\", "");
-                            log_patterns.add(m);
-                        } else {
-                            m = m.replace("*", "%");
-                            m = m.replace("?", "_");
-                            log_patterns.add(m);
-                        }
-                    } else {
-                        log_patterns.add(m);
-                    }
-                }
-            } else if (key.equals("tag")) {
-                for (String m : matchesValues) {
-                    if (m.contains("?") || m.contains("*")) {
-                        if (m.contains("\\?") || m.contains("\\*")) {
-                            m = m.replace("\\", "");
-                            tag_matches.add(m);
-                        } else {
-                            m = m.replace("*", "%");
-                            m = m.replace("?", "_");
-                            tag_patterns.add(m);
-                        }
-                    } else {
-                        tag_matches.add(m);
-                    }
-                }
-                if (tag_matches.size() == 1) {
-                    String match1 = tag_matches.get(0);
-                    tag_matches.clear();
-                    tag_matches.addAll(Arrays.asList(match1.split(",")));
-                }
-            } else if (key.equals("logbook")) {
-                for (String m : matchesValues) {
-                    if (m.contains("?") || m.contains("*")) {
-                        if (m.contains("\\?") || m.contains("\\*")) {
-                            m = m.replace("\\", "");
-                            logbook_matches.add(m);
-                        } else {
-                            m = m.replace("*", "%");
-                            m = m.replace("?", "_");
-                            logbook_patterns.add(m);
-                        }
-                    } else {
-                        logbook_matches.add(m);
-                    }
-                }
-                if (logbook_matches.size() == 1) {
-                    String match1 = logbook_matches.get(0);
-                    logbook_matches.clear();
-                    logbook_matches.addAll(Arrays.asList(match1.split(",")));
-                }
-            } else if (key.equals("property")) {
-                for (String m : matchesValues) {
-                    if (m.contains("?") || m.contains("*")) {
-                        if (m.contains("\\?") || m.contains("\\*")) {
-                            m = m.replace("\\", "");
-                            property_matches.add(m);
-                        } else {
-                            m = m.replace("*", "%");
-                            m = m.replace("?", "_");
-                            property_patterns.add(m);
-                        }
-                    } else {
-                        property_matches.add(m);
+            for (Log log : hydrateLogs(em, ids)) {
+                result.addLog(log);
+            }
+
+            return result;
+        } catch (CFException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishTransacton(em);
+            if (query.getIndexHitKeys() != null) {
+                for (String key : query.getIndexHitKeys()) {
+                    if (key != null) {
+                        LogSearchIndex.dropCandidates(key);
                     }
                 }
-            } else if (key.equals("page")) {
-                paginate_matches.putAll(key, match.getValue());
-            } else if (key.equals("limit")) {
-                paginate_matches.putAll(key, match.getValue());
-            } else if (key.equals("start")) {
-                date_matches.putAll(key, match.getValue());
-            } else if (key.equals("end")) {
-                date_matches.putAll(key, match.getValue());
-            } else if (key.equals("empty")) {
-                empty = true;
-            } else {
-                Collection<String> cleanedMatchesValues = new HashSet<String>();
-                for (String m : matchesValues) {
-                    if (m.contains("?") || m.contains("*")) {
-                        if (m.contains("\\?") || m.contains("\\*")) {
-                            m = m.replace("\\", "");
-                            cleanedMatchesValues.add(m);
-                        } else {
-                            m = m.replace("*", "%");
-                            m = m.replace("?", "_");
-                            cleanedMatchesValues.add(m);
-                        }
-                    } else {
-                        cleanedMatchesValues.add(m);
+            }
+            if (query.getAttachmentHits() != null) {
+                for (String key : query.getAttachmentHits()) {
+                    if (key != null) {
+                        AttachmentManager.releaseSearchHits(key);
                     }
                 }
-                value_patterns.putAll(key, cleanedMatchesValues);
             }
         }
-        //cb.or() causes an error in eclipselink with p1 as first argument
-        Predicate tagPredicate = cb.disjunction();
-        if (!tag_matches.isEmpty()) {
-            tagPredicate = cb.or(tags.get(Tag_.name).in(tag_matches), tagPredicate);
+    }
+
+    /**
+     * Keys of the stored attachment hits of each search term within the
+     * entry id range of the query, null for terms without matching
+     * attachments.
+     */
+    private static List<String> findAttachmentHits(LogQuery query) throws CFException {
+        List<String> hits = new ArrayList<String>();
+        for (String s : query.getLogPatterns()) {
+            hits.add(AttachmentManager.findSearchHits(s, query.getEntryIdRange()));
         }
-        for (String s : tag_patterns) {
-            tagPredicate = cb.or(cb.like(tags.get(Tag_.name), s), tagPredicate);
+        return hits;
+    }
+
+    /**
+     * Candidate entry ids from the full-text index for each search term, null
+     * for terms the index cannot answer.
+     */
+    private static List<List<Long>> findIndexHits(LogQuery query) {
+        List<List<Long>> hits = new ArrayList<List<Long>>();
+        for (String s : query.getLogPatterns()) {
+            hits.add(LogSearchIndex.findCandidates(s));
         }
+        return hits;
+    }
 
-        Predicate logbookPredicate = cb.disjunction();
-        if (!logbook_matches.isEmpty()) {
-            logbookPredicate = cb.and(logbookPredicate, logbooks.get(Logbook_.name).in(logbook_matches));
+    /**
+     * Stages the index candidates of each search term that has too many to
+     * list in the SQL text, for the query to semi-join. Smaller sets are
+     * listed inline, so that most searches write nothing.
+     *
+     * @return keys of the staged candidates, null for terms not staged
+     */
+    private static List<String> stageIndexHits(LogQuery query) throws CFException {
+        List<String> keys = new ArrayList<String>();
+        for (List<Long> candidates : query.getIndexHits()) {
+            keys.add(isStaged(candidates) ? LogSearchIndex.stageCandidates(candidates) : null);
         }
-        for (String s : logbook_patterns) {
-            logbookPredicate = cb.and(logbookPredicate, cb.like(logbooks.get(Logbook_.name), s));
+        return keys;
+    }
+
+    private static boolean isStaged(List<Long> candidates) {
+        return candidates != null && candidates.size() > LogSearchIndex.MAX_INLINE_CANDIDATES;
+    }
+
+    /**
+     * Smallest and largest id of the entries created in the date range of
+     * the query, read from the created index. Every matching entry has an id
+     * in between, so the range lets the database drive the search from the
+     * entries primary key instead of scanning all logs.
+     *
+     * @return {min, max}, both null if no entry was created in the range
+     */
+    private static Long[] findEntryIdRange(EntityManager em, LogQuery query) {
+        Object[] range = (Object[]) em.createNativeQuery(ENTRY_ID_RANGE)
+                .setParameter(1, query.getStart(), TemporalType.TIMESTAMP)
+                .setParameter(2, query.getEnd(), TemporalType.TIMESTAMP)
+                .getSingleResult();
+        if (range[0] == null) {
+            return new Long[]{null, null};
         }
+        return new Long[]{((Number) range[0]).longValue(), ((Number) range[1]).longValue()};
+    }
 
-        Predicate propertyPredicate = cb.disjunction();
-        if (!property_matches.isEmpty()) {
-            propertyPredicate = cb.and(propertyPredicate, property.get(Property_.name).in(property_matches));
+    /**
+     * False if the index or the attachments rule out every log, so that no
+     * SQL query needs to run.
+     */
+    private static boolean hasCandidates(LogQuery query) {
+        if (query.getLogPatterns().isEmpty()) {
+            return true;
         }
-        for (String s : property_patterns) {
-            propertyPredicate = cb.and(propertyPredicate, cb.like(property.get(Property_.name), s));
+        for (int i = 0; i < query.getLogPatterns().size(); i++) {
+            if (query.getIndexHits().get(i) == null || !query.getIndexHits().get(i).isEmpty()
+                    || query.getAttachmentHits().get(i) != null) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        Predicate propertyAttributePredicate = cb.disjunction();
-        for (Map.Entry<String, String> match : value_patterns.entries()) {
-            // Key is coming in as property.attribute
-            List<String> group = Arrays.asList(match.getKey().split("\\."));
-            if (group.size() == 2) {
-                propertyAttributePredicate = cb.and(propertyAttributePredicate,
-                        cb.like(logAttribute.get(LogAttribute_.value),
-                        match.getValue()), property.get(Property_.name).in(group.get(0),
-                        attribute.get(Attribute_.name).in(group.get(1))));
+    /**
+     * First phase: (log id, created, entry id) of one page of matching logs,
+     * newest entry first. In cursor mode the page starts after the cursor
+     * position and one extra row is read to tell whether a next page exists.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object[]> findLogRows(EntityManager em, LogQuery query) {
+        Query rowQuery = createPlannedQuery(em, query, true);
+        if (query.hasCursor()) {
+            if (query.getLimit() != null) {
+                rowQuery.setMaxResults(query.getLimit() + 1);
             }
+        } else if (query.isPaginated()) {
+            rowQuery.setFirstResult(query.getFirstResult());
+            rowQuery.setMaxResults(query.getLimit());
+        }
+        return rowQuery.getResultList();
+    }
+
+    /**
+     * Number of logs matching the query, regardless of pagination, as
+     * selected by the count mode: exact counts are cached for a short time,
+     * estimates come from a cached count or the table statistics, and no
+     * count at all is returned as null.
+     */
+    private static Long countLogs(EntityManager em, LogQuery query) {
+        switch (query.getCountMode()) {
+            case NONE:
+                return null;
+            case ESTIMATE:
+                Long cached = LogCountCache.get(query.getNormalized(), true);
+                if (cached != null || query.isFiltered()) {
+                    return cached;
+                }
+                Object rows = em.createNativeQuery("SELECT TABLE_ROWS FROM information_schema.TABLES"
+                        + " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'entries'").getSingleResult();
+                return rows == null ? null : ((Number) rows).longValue();
+            default:
+                Long count = LogCountCache.get(query.getNormalized(), false);
+                if (count == null) {
+                    long generation = LogCountCache.generation();
+                    count = ((Number) createPlannedQuery(em, query, false).getSingleResult()).longValue();
+                    LogCountCache.put(query.getNormalized(), count, generation);
+                }
+                return count;
         }
+    }
 
-        Predicate searchPredicate = cb.disjunction();
-        for (String s : log_patterns) {
-            searchPredicate = cb.or(cb.like(from.get(Log_.description), s), searchPredicate);
-            List<Long> ids = AttachmentManager.findAll(s);
-            if (!ids.isEmpty()) {
-                searchPredicate = cb.or(entry.get(Entry_.id).in(ids), searchPredicate);
+    /**
+     * Creates the row (or count) query of a log search from the plan cached
+     * for the shape of its parameters, binding only the parameter values.
+     * The JPQL text is built and prepared on a cache miss only.
+     */
+    private static Query createPlannedQuery(EntityManager em, LogQuery query, boolean rows) {
+        String shape = shape(query, rows);
+        List<Object> params = new ArrayList<Object>();
+        Query plannedQuery = LogQueryPlanCache.get(em, shape);
+        if (plannedQuery == null) {
+            StringBuilder joins = new StringBuilder();
+            StringBuilder where = new StringBuilder();
+            restrict(query, rows, params, joins, where);
+            String distinct = query.needsDistinct() ? "DISTINCT " : "";
+            String jpql;
+            if (rows) {
+                jpql = "SELECT " + distinct + "l.id, e.createdDate, e.id FROM Log l JOIN l.entry e"
+                        + joins + where + " ORDER BY e.createdDate DESC, e.id DESC";
+            } else {
+                jpql = "SELECT COUNT(" + distinct + "l) FROM Log l JOIN l.entry e" + joins + where;
             }
+            plannedQuery = LogQueryPlanCache.put(em, shape, jpql);
+        } else {
+            restrict(query, rows, params, null, null);
+        }
+        for (int i = 0; i < params.size(); i++) {
+            plannedQuery.setParameter(i + 1, params.get(i));
         }
+        return plannedQuery;
+    }
 
-        Predicate datePredicate = cb.disjunction();
-        if (!date_matches.isEmpty()) {
-            String start = null, end = null;
-            for (Map.Entry<String, Collection<String>> match : date_matches.asMap().entrySet()) {
-                if (match.getKey().toLowerCase().equals("start")) {
-                    start = match.getValue().iterator().next();
+    /**
+     * Compact shape of a log query: the filters present, their number of
+     * values, and which search terms use the index or attachment hits.
+     * Queries of equal shape have the same JPQL.
+     */
+    private static String shape(LogQuery query, boolean rows) {
+        StringBuilder shape = new StringBuilder(rows ? "r" : "c");
+        if (query.needsDistinct()) {
+            shape.append('d');
+        }
+        if (query.joinsTags()) {
+            shape.append("|t").append(query.getTagMatches().isEmpty() ? 0 : 1)
+                    .append(',').append(query.getTagPatterns().size());
+        }
+        if (query.joinsLogbooks()) {
+            shape.append("|b").append(query.getLogbookMatches().isEmpty() ? 0 : 1)
+                    .append(',').append(query.getLogbookPatterns().size());
+        }
+        if (query.joinsAttributes()) {
+            int values = 0;
+            for (String key : query.getValuePatterns().keys()) {
+                if (key.split("\\.").length == 2) {
+                    values++;
                 }
-                if (match.getKey().toLowerCase().equals("end")) {
-                    end = match.getValue().iterator().next();
+            }
+            shape.append("|p").append(query.getPropertyMatches().isEmpty() ? 0 : 1)
+                    .append(',').append(query.getPropertyPatterns().size()).append(',').append(values);
+        }
+        if (!query.getLogPatterns().isEmpty()) {
+            shape.append("|s");
+            for (int i = 0; i < query.getLogPatterns().size(); i++) {
+                List<Long> candidates = query.getIndexHits().get(i);
+                shape.append(candidates == null ? 'l' : candidates.isEmpty() ? '-' : isStaged(candidates) ? 's' : 'i');
+                if (query.getAttachmentHits().get(i) != null) {
+                    shape.append('a');
                 }
             }
-            if (start != null && end == null) {
-                Date jStart = new java.util.Date(Long.valueOf(start) * 1000);
-                Date jEndNow = new java.util.Date(Calendar.getInstance().getTime().getTime());
-                datePredicate = cb.between(entry.get(Entry_.createdDate),
-                        jStart,
-                        jEndNow);
-            } else if (start == null && end != null) {
-                Date jStart1970 = new java.util.Date(0);
-                Date jEnd = new java.util.Date(Long.valueOf(end) * 1000);
-                datePredicate = cb.between(entry.get(Entry_.createdDate),
-                        jStart1970,
-                        jEnd);
-            } else {
-                Date jStart = new java.util.Date(Long.valueOf(start) * 1000);
-                Date jEnd = new java.util.Date(Long.valueOf(end) * 1000);
-                datePredicate = cb.between(entry.get(Entry_.createdDate),
-                        jStart,
-                        jEnd);
+        }
+        if (query.hasDateRange()) {
+            shape.append("|r");
+        }
+        if (rows && query.getCursorCreated() != null) {
+            shape.append("|k");
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Walks the filters of a log query, binding the values of every clause
+     * in order. When joins and where are given, the JPQL joins and where
+     * clause are written as well; the logbook, tag and attribute tables are
+     * joined only when a filter refers to them.
+     */
+    private static void restrict(LogQuery query, boolean withCursor,
+            List<Object> params, StringBuilder joins, StringBuilder where) {
+        boolean text = where != null;
+        List<String> clauses = text ? new ArrayList<String>() : null;
+        clause("l.state = ?", State.Active, params, clauses);
+
+        if (query.joinsTags()) {
+            List<String> tagClauses = text ? new ArrayList<String>() : null;
+            if (!query.getTagMatches().isEmpty()) {
+                clause("t.name IN ?", query.getTagMatches(), params, tagClauses);
+            }
+            for (String s : query.getTagPatterns()) {
+                clause("t.name LIKE ?", s, params, tagClauses);
+            }
+            if (text) {
+                joins.append(" JOIN l.tags t");
+                clauses.add(group(tagClauses, " OR "));
             }
         }
 
-        cq.distinct(true);
+        if (query.joinsLogbooks()) {
+            if (!query.getLogbookMatches().isEmpty()) {
+                clause("b.name IN ?", query.getLogbookMatches(), params, clauses);
+            }
+            for (String s : query.getLogbookPatterns()) {
+                clause("b.name LIKE ?", s, params, clauses);
+            }
+            if (text) {
+                joins.append(" JOIN l.logbooks b");
+            }
+        }
 
-        Predicate statusPredicate = cb.equal(from.get(Log_.state), State.Active);
-        Predicate finalPredicate = cb.and(statusPredicate, logbookPredicate, tagPredicate, propertyPredicate, propertyAttributePredicate, datePredicate, searchPredicate);
-        cq.where(finalPredicate);
-        cq.orderBy(cb.desc(entry.get(Entry_.createdDate)));
-        TypedQuery<Log> typedQuery = em.createQuery(cq);
-
-        if (!paginate_matches.isEmpty()) {
-            String page = null, limit = null;
-            for (Map.Entry<String, Collection<String>> match : paginate_matches.asMap().entrySet()) {
-                if (match.getKey().toLowerCase().equals("limit")) {
-                    limit = match.getValue().iterator().next();
-                }
-                if (match.getKey().toLowerCase().equals("page")) {
-                    page = match.getValue().iterator().next();
+        if (query.joinsAttributes()) {
+            if (!query.getPropertyMatches().isEmpty()) {
+                clause("p.name IN ?", query.getPropertyMatches(), params, clauses);
+            }
+            for (String s : query.getPropertyPatterns()) {
+                clause("p.name LIKE ?", s, params, clauses);
+            }
+            for (Map.Entry<String, String> match : query.getValuePatterns().entries()) {
+                // Key is coming in as property.attribute
+                List<String> group = Arrays.asList(match.getKey().split("\\."));
+                if (group.size() == 2) {
+                    clause("la.value LIKE ?", match.getValue(), params, clauses);
+                    clause("p.name = ?", group.get(0), params, clauses);
+                    clause("a.name = ?", group.get(1), params, clauses);
                 }
             }
-            if (limit != null && page != null) {
-                Integer offset = Integer.valueOf(page) * Integer.valueOf(limit) - Integer.valueOf(limit);
-                typedQuery.setFirstResult(offset);
-                typedQuery.setMaxResults(Integer.valueOf(limit));
+            if (text) {
+                joins.append(" JOIN l.attributes la JOIN la.attribute a JOIN a.property p");
             }
         }
 
-        JPAUtil.startTransaction(em);
+        if (!query.getLogPatterns().isEmpty()) {
+            List<String> searchClauses = text ? new ArrayList<String>() : null;
+            for (int i = 0; i < query.getLogPatterns().size(); i++) {
+                List<Long> candidates = query.getIndexHits().get(i);
+                if (candidates == null) {
+                    clause("l.description LIKE ?", query.getLogPatterns().get(i), params, searchClauses);
+                } else if (!candidates.isEmpty()) {
+                    List<String> indexClauses = text ? new ArrayList<String>() : null;
+                    if (isStaged(candidates)) {
+                        clause("e.id IN (SELECT c.entryId FROM LogSearchHit c WHERE c.searchKey = ?)",
+                                query.getIndexHitKeys().get(i), params, indexClauses);
+                    } else {
+                        clause("e.id IN ?", candidates, params, indexClauses);
+                    }
+                    clause("l.description LIKE ?", query.getLogPatterns().get(i), params, indexClauses);
+                    if (text) {
+                        searchClauses.add(group(indexClauses, " AND "));
+                    }
+                }
+                if (query.getAttachmentHits().get(i) != null) {
+                    clause("e.id IN (SELECT h.entryId FROM AttachmentSearchHit h WHERE h.termKey = ?)",
+                            query.getAttachmentHits().get(i), params, searchClauses);
+                }
+            }
+            if (text) {
+                clauses.add(group(searchClauses, " OR "));
+            }
+        }
 
-        try {
-            Logs result = new Logs();
+        if (query.hasDateRange()) {
+            clause("e.createdDate >= ?", query.getStart(), params, clauses);
+            clause("e.createdDate <= ?", query.getEnd(), params, clauses);
+            clause("e.id >= ?", query.getEntryIdRange()[0], params, clauses);
+            clause("e.id <= ?", query.getEntryIdRange()[1], params, clauses);
+        }
 
-            result.setCount(JPAUtil.count(em, cq));
-            if (empty) {
-                return result;
+        if (withCursor && query.getCursorCreated() != null) {
+            List<String> cursorClauses = text ? new ArrayList<String>() : null;
+            clause("e.createdDate < ?", query.getCursorCreated(), params, cursorClauses);
+            List<String> positionClauses = text ? new ArrayList<String>() : null;
+            clause("e.createdDate = ?", query.getCursorCreated(), params, positionClauses);
+            clause("e.id < ?", query.getCursorEntryId(), params, positionClauses);
+            if (text) {
+                cursorClauses.add(group(positionClauses, " AND "));
+                clauses.add(group(cursorClauses, " OR "));
             }
+        }
 
-            List<Log> rs = typedQuery.getResultList();
+        if (text) {
+            where.append(" WHERE ").append(group(clauses, " AND "));
+        }
+    }
 
-            if (rs != null) {
-                Iterator<Log> iterator = rs.iterator();
-                while (iterator.hasNext()) {
-                    Log log = iterator.next();
-                    Entry e = log.getEntry();
-                    Collection<Log> logs = e.getLogs();
-                    log.setVersion(String.valueOf(logs.size()));
-                    log.setXmlAttachments(AttachmentManager.findAll(log.getEntryId()).getAttachments());
-                    Iterator<LogAttribute> iter = log.getAttributes().iterator();
-                    Set<XmlProperty> xmlProperties = new HashSet<XmlProperty>();
-                    while (iter.hasNext()) {
-                        XmlProperty xmlProperty = new XmlProperty();
-                        Map<String, String> map = new HashMap<String, String>();
-                        LogAttribute logattr = iter.next();
-                        Attribute attr = logattr.getAttribute();
-                        xmlProperty.setName(attr.getProperty().getName());
-                        xmlProperty.setId(attr.getProperty().getId());
-                        for (XmlProperty prevXmlProperty : xmlProperties) {
-                            if (prevXmlProperty.getId().equals(xmlProperty.getId())) {
-                                map = prevXmlProperty.getAttributes();
-                            }
-                        }
-                        map.put(attr.getName(), logattr.getValue());
-                        xmlProperty.setAttributes(map);
-                        xmlProperties.add(xmlProperty);
-                    }
-                    log.setXmlProperties(xmlProperties);
-                    result.addLog(log);
-                }
+    /**
+     * Binds the value of one clause to the next positional parameter and
+     * records the clause; '?' in the expression stands for the parameter.
+     */
+    private static void clause(String expression, Object value, List<Object> params, List<String> clauses) {
+        params.add(value);
+        if (clauses != null) {
+            clauses.add(expression.replace("?", "?" + params.size()));
+        }
+    }
+
+    private static String group(List<String> clauses, String operator) {
+        StringBuilder group = new StringBuilder("(");
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i > 0) {
+                group.append(operator);
             }
+            group.append(clauses.get(i));
+        }
+        return group.append(')').toString();
+    }
 
+    /**
+     * Second phase: loads the logs with the given ids, keeping the order of
+     * the ids. Logbooks, tags and entries are batch read for each chunk of
+     * ids instead of one select per log.
+     */
+    private static List<Log> hydrateLogs(EntityManager em, List<Long> ids) throws CFException {
+        Map<Long, Log> logsById = new HashMap<Long, Log>();
+        for (int i = 0; i < ids.size(); i += HYDRATION_BATCH_SIZE) {
+            List<Long> chunk = ids.subList(i, Math.min(ids.size(), i + HYDRATION_BATCH_SIZE));
+            TypedQuery<Log> typedQuery = em.createQuery("SELECT l FROM Log l WHERE l.id IN :ids", Log.class);
+            typedQuery.setParameter("ids", chunk);
+            typedQuery.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+            typedQuery.setHint(QueryHints.BATCH, "l.entry");
+            typedQuery.setHint(QueryHints.BATCH, "l.logbooks");
+            typedQuery.setHint(QueryHints.BATCH, "l.tags");
+            for (Log log : typedQuery.getResultList()) {
+                logsById.put(log.getId(), log);
+            }
+        }
+        Set<Long> entryIds = new HashSet<Long>();
+        for (Log log : logsById.values()) {
+            entryIds.add(log.getEntryId());
+        }
+        Map<Long, XmlAttachments> attachments = AttachmentManager.findAll(entryIds);
+        Map<Long, Set<XmlProperty>> properties = findXmlProperties(em, logsById.keySet());
+        List<Log> logs = new ArrayList<Log>(ids.size());
+        for (Long id : ids) {
+            Log log = logsById.get(id);
+            if (log == null) {
+                continue;
+            }
+            log.setVersion(String.valueOf(log.getEntry().getVersion()));
+            log.setXmlAttachments(attachments.get(log.getEntryId()).getAttachments());
+            log.setXmlProperties(properties.get(log.getId()));
+            logs.add(log);
+        }
+        return logs;
+    }
+
+    /**
+     * Finds a log and edits in the database by id.
+     *
+     * @return Log
+     * @throws CFException wrapping an SQLException
+     */
+    public static Log findLog(Long id) throws CFException {
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            Entry entry = em.find(Entry.class, id);
+            if (entry == null || entry.getCurrentLogId() == null) {
+                return null;
+            }
+            Log result = em.find(Log.class, entry.getCurrentLogId());
+            result.setVersion(String.valueOf(entry.getVersion()));
+            result.setXmlAttachments(AttachmentManager.findAll(result.getEntryId()).getAttachments());
+            result.setXmlProperties(findXmlProperties(em, Collections.singleton(result.getId())).get(result.getId()));
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -345,44 +560,80 @@ public class LogManager {
     }
 
     /**
-     * Finds a log and edits in the database by id.
+     * Versions of an entry, newest first. Compacted versions are returned as
+     * stored; {@link LogHistory} fills in their content.
      *
-     * @return Log
+     * @param entryId entry id
+     * @param beforeLogId only versions with a smaller log id
+     * @param max maximum number of versions
+     * @return versions, each with the current version number of the entry
      * @throws CFException wrapping an SQLException
      */
-    public static Log findLog(Long id) throws CFException {
+    public static List<Log> findVersions(Long entryId, Long beforeLogId, int max) throws CFException {
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
         try {
-            Entry entry = (Entry) JPAUtil.findByID(Entry.class, id);
-            Collection<Log> logs = entry.getLogs();
-            Log result = Collections.max(logs);
-            result.setVersion(String.valueOf(logs.size()));
-            result.setXmlAttachments(AttachmentManager.findAll(result.getEntryId()).getAttachments());
-            Iterator<LogAttribute> iter = result.getAttributes().iterator();
-            Set<XmlProperty> xmlProperties = new HashSet<XmlProperty>();
-            while (iter.hasNext()) {
-                XmlProperty xmlProperty = new XmlProperty();
-                Map<String, String> map = new HashMap<String, String>();
-                LogAttribute logattr = iter.next();
-                Attribute attr = logattr.getAttribute();
-                xmlProperty.setName(attr.getProperty().getName());
-                xmlProperty.setId(attr.getProperty().getId());
-                for (XmlProperty prevXmlProperty : xmlProperties) {
-                    if (prevXmlProperty.getId().equals(xmlProperty.getId())) {
-                        map = prevXmlProperty.getAttributes();
-                    }
-                }
-                map.put(attr.getName(), logattr.getValue());
-                xmlProperty.setAttributes(map);
-                xmlProperties.add(xmlProperty);
-            }
-            result.setXmlProperties(xmlProperties);
-            return result;
+            List<Long> ids = em.createQuery("SELECT l.id FROM Log l WHERE l.entry.id = :entryId AND l.id < :before ORDER BY l.id DESC", Long.class)
+                    .setParameter("entryId", entryId)
+                    .setParameter("before", beforeLogId)
+                    .setMaxResults(max)
+                    .getResultList();
+            List<Log> logs = hydrateLogs(em, ids);
+            em.clear();
+            return logs;
+        } catch (CFException e) {
+            throw e;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
+        } finally {
+            em.close();
         }
     }
 
+    /**
+     * Builds the properties of the given logs from a single joined query per
+     * chunk of log ids. Attribute rows are grouped into one XmlProperty per
+     * log and grouping number in one pass.
+     *
+     * @param em entity manager
+     * @param logIds log ids
+     * @return properties keyed by log id, empty for logs without any
+     */
+    private static Map<Long, Set<XmlProperty>> findXmlProperties(EntityManager em, Collection<Long> logIds) {
+        Map<Long, Set<XmlProperty>> result = new HashMap<Long, Set<XmlProperty>>();
+        for (Long logId : logIds) {
+            result.put(logId, new HashSet<XmlProperty>());
+        }
+        List<Long> ids = new ArrayList<Long>(logIds);
+        Map<String, XmlProperty> groups = new HashMap<String, XmlProperty>();
+        for (int i = 0; i < ids.size(); i += HYDRATION_BATCH_SIZE) {
+            List<Long> chunk = ids.subList(i, Math.min(ids.size(), i + HYDRATION_BATCH_SIZE));
+            TypedQuery<Object[]> query = em.createQuery(
+                    "SELECT la.logId, la.groupingNum, p.id, p.name, a.name, la.value"
+                    + " FROM LogAttribute la JOIN la.attribute a JOIN a.property p"
+                    + " WHERE la.logId IN :ids", Object[].class);
+            query.setParameter("ids", chunk);
+            for (Object[] row : query.getResultList()) {
+                Long logId = (Long) row[0];
+                Long groupingNum = (Long) row[1];
+                Long propertyId = (Long) row[2];
+                String key = logId + ":" + groupingNum + ":" + propertyId;
+                XmlProperty xmlProperty = groups.get(key);
+                if (xmlProperty == null) {
+                    xmlProperty = new XmlProperty((String) row[3]);
+                    xmlProperty.setId(propertyId);
+                    if (groupingNum != null) {
+                        xmlProperty.setGroupingNum(groupingNum.intValue());
+                    }
+                    groups.put(key, xmlProperty);
+                    result.get(logId).add(xmlProperty);
+                }
+                xmlProperty.getAttributes().put((String) row[4], (String) row[5]);
+            }
+        }
+        return result;
+    }
+
     /**
      * Creates a Log in the database.
      *
@@ -399,7 +650,6 @@ public class LogManager {
         newLog.setOwner(log.getOwner());
         newLog.setDescription(log.getDescription());
         newLog.setSource(log.getSource());
-        em.persist(newLog);
         if (!log.getLogbooks().isEmpty()) {
             Iterator<Logbook> iterator = log.getLogbooks().iterator();
             Set<Logbook> logbooks = new HashSet<Logbook>();
@@ -407,9 +657,7 @@ public class LogManager {
                 String logbookName = iterator.next().getName();
                 Logbook logbook = LogbookManager.findLogbook(logbookName);
                 if (logbook != null) {
-                    logbook = em.merge(logbook);
-                    logbook.addLog(newLog);
-                    logbooks.add(logbook);
+                    logbooks.add(em.find(Logbook.class, logbook.getId()));
                 } else {
                     throw new CFException(Response.Status.NOT_FOUND,
                             "Log entry " + log.getId() + " logbook:" + logbookName + " does not exists.");
@@ -427,9 +675,7 @@ public class LogManager {
                 String tagName = iterator2.next().getName();
                 Tag tag = TagManager.findTag(tagName);
                 if (tag != null) {
-                    tag = em.merge(tag);
-                    tag.addLog(newLog);
-                    tags.add(tag);
+                    tags.add(em.find(Tag.class, tag.getId()));
                 } else {
                     throw new CFException(Response.Status.NOT_FOUND,
                             "Log entry " + log.getId() + " tag:" + tagName + " does not exists.");
@@ -437,31 +683,33 @@ public class LogManager {
             }
             newLog.setTags(tags);
         }
+        Long previousLogId = null;
         try {
+            Entry entry;
             if (log.getEntryId() != null) {
-                Entry entry = (Entry) JPAUtil.findByID(Entry.class, log.getEntryId());
-                if (entry.getLogs() != null) {
-                    List<Log> logs = entry.getLogs();
-                    ListIterator<Log> iterator = logs.listIterator();
-                    while (iterator.hasNext()) {
-                        Log sibling = iterator.next();
-                        sibling = em.merge(sibling);
-                        sibling.setState(State.Inactive);
-                        iterator.set(sibling);
-                    }
-                    entry.addLog(newLog);
+                entry = em.find(Entry.class, log.getEntryId(), LockModeType.PESSIMISTIC_WRITE);
+                if (entry == null) {
+                    throw new CFException(Response.Status.NOT_FOUND,
+                            "Log entry " + log.getEntryId() + " does not exists.");
                 }
-                newLog.setState(State.Active);
-                newLog.setEntry(entry);
-                em.merge(entry);
+                previousLogId = entry.getCurrentLogId();
+                em.createQuery("UPDATE Log l SET l.state = :state WHERE l.entry.id = :entryId AND l.state = :active")
+                        .setParameter("state", State.Inactive)
+                        .setParameter("active", State.Active)
+                        .setParameter("entryId", entry.getId())
+                        .executeUpdate();
             } else {
-                Entry entry = new Entry();
-                newLog.setState(State.Active);
+                entry = new Entry();
                 entry.addLog(newLog);
-                newLog.setEntry(entry);
                 em.persist(entry);
             }
+            newLog.setState(State.Active);
+            newLog.setEntry(entry);
+            em.persist(newLog);
             em.flush();
+            entry.setVersion(entry.getVersion() + 1);
+            entry.setCurrentLogId(newLog.getId());
+            newLog.setVersion(String.valueOf(entry.getVersion()));
             if (log.getXmlProperties() != null) {
                 Set<LogAttribute> logattrs = new HashSet<LogAttribute>();
                 Long i = 0L;
@@ -485,8 +733,21 @@ public class LogManager {
                 }
             }
             newLog.setXmlProperties(log.getXmlProperties());
+            if (previousLogId != null) {
+                em.flush();
+                LogHistory.compact(em, previousLogId, newLog.getId());
+            }
             JPAUtil.finishTransacton(em);
+            if (previousLogId != null) {
+                JPAUtil.getEntityManagerFactory().getCache().evict(Log.class, previousLogId);
+            }
+            evictLogbooksAndTags(newLog);
+            LogCountCache.invalidate();
+            LogSearchIndex.update(newLog);
             return newLog;
+        } catch (CFException e) {
+            JPAUtil.transactionFailed(em);
+            throw e;
         } catch (Exception e) {
             JPAUtil.transactionFailed(em);
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -496,26 +757,417 @@ public class LogManager {
     }
 
     /**
-     * Remove a tag (mark as Inactive).
+     * Drops the logbooks and tags of a new log from the shared cache. Only
+     * the owning side of these associations is written, so that the logs of
+     * a logbook are never loaded to add one, and cached inverse collections
+     * would be stale.
+     */
+    private static void evictLogbooksAndTags(Log log) {
+        Cache cache = JPAUtil.getEntityManagerFactory().getCache();
+        for (Logbook logbook : log.getLogbooks()) {
+            cache.evict(Logbook.class, logbook.getId());
+        }
+        for (Tag tag : log.getTags()) {
+            cache.evict(Tag.class, tag.getId());
+        }
+    }
+
+    /**
+     * Creates a batch of logs in a single transaction. The logbook, tag,
+     * property and attribute names of the whole batch are resolved once, and
+     * entries, logs, associations and attributes are inserted with JDBC
+     * batches. Either all logs are created or none is: the first invalid log
+     * fails the whole batch, and the error names its index in <tt>logs</tt>.
      *
-     * @param name tag name
+     * @param logs logs to create; a log with an entry id becomes the new
+     * version of that entry
+     * @return created logs in the order of <tt>logs</tt>
+     * @throws CFException on unknown names or entries, or wrapping an
+     * SQLException
      */
-    public static void remove(Long id) throws CFException {
+    public static List<Log> createAll(List<Log> logs) throws CFException {
+        List<Log> created = new ArrayList<Log>(logs.size());
+        if (logs.isEmpty()) {
+            return created;
+        }
+        Connection con = null;
         try {
-            Entry entry = (Entry) JPAUtil.findByID(Entry.class, id);
-            if (entry != null) {
-                if (entry.getLogs() != null) {
-                    List<Log> logs = entry.getLogs();
-                    ListIterator<Log> iterator = logs.listIterator();
-                    while (iterator.hasNext()) {
-                        Log sibling = iterator.next();
-                        sibling.setState(State.Inactive);
-                        iterator.set(sibling);
-                        JPAUtil.update(sibling);
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            con.setAutoCommit(false);
+            Map<String, Logbook> logbooks = new HashMap<String, Logbook>();
+            Map<String, Tag> tags = new HashMap<String, Tag>();
+            findLogbooksAndTags(con, logs, logbooks, tags);
+            Map<String, Map<String, Long>> attributes = findAttributes(con, logs);
+            Date now = new Date();
+            for (int i = 0; i < logs.size(); i++) {
+                created.add(prepareLog(logs.get(i), i, logbooks, tags, attributes, now));
+            }
+            lockEntries(con, created);
+            insertEntries(con, created);
+            insertLogs(con, created);
+            insertAssociations(con, created);
+            insertAttributes(con, created, attributes);
+            for (Log log : created) {
+                if (log.getEntry().getCurrentLogId() != null) {
+                    LogHistory.compact(con, log.getEntry().getCurrentLogId(), log.getId());
+                }
+            }
+            updateEntries(con, created);
+            con.commit();
+        } catch (CFException e) {
+            rollback(con);
+            throw e;
+        } catch (SQLException e) {
+            rollback(con);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JDBC exception: " + e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+        // the rows were written past EclipseLink, drop what its shared cache
+        // holds about entries, logs and their logbooks and tags
+        Cache cache = JPAUtil.getEntityManagerFactory().getCache();
+        cache.evict(Entry.class);
+        cache.evict(Log.class);
+        cache.evict(Logbook.class);
+        cache.evict(Tag.class);
+        LogCountCache.invalidate();
+        LogSearchIndex.updateAll(created);
+        return created;
+    }
+
+    private static void findLogbooksAndTags(Connection con, List<Log> logs,
+            Map<String, Logbook> logbooks, Map<String, Tag> tags) throws SQLException {
+        Set<String> names = new HashSet<String>();
+        for (Log log : logs) {
+            for (Logbook logbook : log.getLogbooks()) {
+                names.add(logbook.getName());
+            }
+            if (log.getTags() != null) {
+                for (Tag tag : log.getTags()) {
+                    names.add(tag.getName());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = con.prepareStatement("SELECT id, name, owner, state, is_tag FROM logbooks WHERE name IN ("
+                + placeholders(names.size()) + ")");
+        int i = 1;
+        for (String name : names) {
+            ps.setString(i++, name);
+        }
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            if (rs.getInt("is_tag") == 0) {
+                Logbook logbook = new Logbook(rs.getString("name"), rs.getString("owner"));
+                logbook.setId(rs.getLong("id"));
+                logbook.setState(State.valueOf(rs.getString("state")));
+                logbooks.put(logbook.getName(), logbook);
+            } else {
+                Tag tag = new Tag(rs.getString("name"));
+                tag.setId(rs.getLong("id"));
+                tag.setState(State.valueOf(rs.getString("state")));
+                tags.put(tag.getName(), tag);
+            }
+        }
+        ps.close();
+    }
+
+    /**
+     * @return attribute ids keyed by property name and attribute name
+     */
+    private static Map<String, Map<String, Long>> findAttributes(Connection con, List<Log> logs) throws SQLException {
+        Map<String, Map<String, Long>> attributes = new HashMap<String, Map<String, Long>>();
+        Set<String> names = new HashSet<String>();
+        for (Log log : logs) {
+            if (log.getXmlProperties() != null) {
+                for (XmlProperty p : log.getXmlProperties()) {
+                    names.add(p.getName());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return attributes;
+        }
+        PreparedStatement ps = con.prepareStatement("SELECT p.name, a.name, a.id FROM properties p"
+                + " JOIN attributes a ON a.property_id = p.id WHERE p.name IN ("
+                + placeholders(names.size()) + ")");
+        int i = 1;
+        for (String name : names) {
+            ps.setString(i++, name);
+        }
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            Map<String, Long> property = attributes.get(rs.getString(1));
+            if (property == null) {
+                property = new HashMap<String, Long>();
+                attributes.put(rs.getString(1), property);
+            }
+            property.put(rs.getString(2), rs.getLong(3));
+        }
+        ps.close();
+        return attributes;
+    }
+
+    /**
+     * Checks the names of one log of a batch and builds the log to insert.
+     *
+     * @param index position of the log in the batch, for error messages
+     */
+    private static Log prepareLog(Log log, int index, Map<String, Logbook> logbooks, Map<String, Tag> tags,
+            Map<String, Map<String, Long>> attributes, Date now) throws CFException {
+        Log newLog = new Log();
+        newLog.setState(State.Active);
+        newLog.setLevel(log.getLevel() == null ? Level.Info : log.getLevel());
+        newLog.setOwner(log.getOwner());
+        newLog.setDescription(log.getDescription());
+        newLog.setSource(log.getSource());
+        newLog.setModifiedDate(now);
+        if (log.getLogbooks().isEmpty()) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log " + index + " must be in at least one logbook.");
+        }
+        for (Logbook logbook : log.getLogbooks()) {
+            if (!logbooks.containsKey(logbook.getName())) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Log " + index + " logbook:" + logbook.getName() + " does not exists.");
+            }
+            newLog.addLogbook(logbooks.get(logbook.getName()));
+        }
+        if (log.getTags() != null) {
+            for (Tag tag : log.getTags()) {
+                if (!tags.containsKey(tag.getName())) {
+                    throw new CFException(Response.Status.NOT_FOUND,
+                            "Log " + index + " tag:" + tag.getName() + " does not exists.");
+                }
+                newLog.addTag(tags.get(tag.getName()));
+            }
+        }
+        if (log.getXmlProperties() != null) {
+            for (XmlProperty p : log.getXmlProperties()) {
+                for (String attribute : p.getAttributes().keySet()) {
+                    if (!attributes.containsKey(p.getName())
+                            || !attributes.get(p.getName()).containsKey(attribute)) {
+                        throw new CFException(Response.Status.NOT_FOUND,
+                                "Log " + index + " property:" + p.getName() + " attribute:" + attribute + " does not exists.");
                     }
                 }
             }
+        }
+        newLog.setXmlProperties(log.getXmlProperties());
+        Entry entry = new Entry();
+        entry.setId(log.getEntryId());
+        entry.setCreatedDate(now);
+        newLog.setEntry(entry);
+        return newLog;
+    }
+
+    /**
+     * Locks the existing entries of a batch and marks their current logs
+     * inactive.
+     */
+    private static void lockEntries(Connection con, List<Log> logs) throws SQLException, CFException {
+        Map<Long, Entry> entries = new HashMap<Long, Entry>();
+        for (Log log : logs) {
+            Long id = log.getEntryId();
+            if (id != null && entries.put(id, log.getEntry()) != null) {
+                throw new CFException(Response.Status.BAD_REQUEST,
+                        "Log entry " + id + " appears more than once.");
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = con.prepareStatement("SELECT id, created, version, current_log_id FROM entries WHERE id IN ("
+                + placeholders(entries.size()) + ") FOR UPDATE");
+        int i = 1;
+        for (Long id : entries.keySet()) {
+            ps.setLong(i++, id);
+        }
+        ResultSet rs = ps.executeQuery();
+        Set<Long> found = new HashSet<Long>();
+        while (rs.next()) {
+            Entry entry = entries.get(rs.getLong("id"));
+            entry.setCreatedDate(rs.getTimestamp("created"));
+            entry.setVersion(rs.getInt("version"));
+            long currentLogId = rs.getLong("current_log_id");
+            entry.setCurrentLogId(rs.wasNull() ? null : currentLogId);
+            found.add(entry.getId());
+        }
+        ps.close();
+        for (Long id : entries.keySet()) {
+            if (!found.contains(id)) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Log entry " + id + " does not exists.");
+            }
+        }
+        ps = con.prepareStatement("UPDATE logs SET state = ? WHERE entry_id = ? AND state = ?");
+        for (Long id : entries.keySet()) {
+            ps.setString(1, State.Inactive.name());
+            ps.setLong(2, id);
+            ps.setString(3, State.Active.name());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    private static void insertEntries(Connection con, List<Log> logs) throws SQLException {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Log log : logs) {
+            if (log.getEntryId() == null) {
+                entries.add(log.getEntry());
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = con.prepareStatement("INSERT INTO entries (created, version) VALUES (?, 0)",
+                Statement.RETURN_GENERATED_KEYS);
+        for (Entry entry : entries) {
+            ps.setTimestamp(1, new Timestamp(entry.getCreatedDate().getTime()));
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ResultSet keys = ps.getGeneratedKeys();
+        for (Entry entry : entries) {
+            keys.next();
+            entry.setId(keys.getLong(1));
+        }
+        ps.close();
+    }
+
+    private static void insertLogs(Connection con, List<Log> logs) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("INSERT INTO logs (modified, source, owner, state, level, description, entry_id)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+        for (Log log : logs) {
+            ps.setTimestamp(1, new Timestamp(log.getModifiedDate().getTime()));
+            ps.setString(2, log.getSource());
+            ps.setString(3, log.getOwner());
+            ps.setString(4, log.getState().name());
+            ps.setString(5, log.getLevel().name());
+            ps.setString(6, log.getDescription());
+            ps.setLong(7, log.getEntryId());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ResultSet keys = ps.getGeneratedKeys();
+        for (Log log : logs) {
+            keys.next();
+            log.setId(keys.getLong(1));
+        }
+        ps.close();
+    }
+
+    private static void insertAssociations(Connection con, List<Log> logs) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("INSERT INTO logs_logbooks (log_id, logbook_id) VALUES (?, ?)");
+        for (Log log : logs) {
+            for (Logbook logbook : log.getLogbooks()) {
+                ps.setLong(1, log.getId());
+                ps.setLong(2, logbook.getId());
+                ps.addBatch();
+            }
+            for (Tag tag : log.getTags()) {
+                ps.setLong(1, log.getId());
+                ps.setLong(2, tag.getId());
+                ps.addBatch();
+            }
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    private static void insertAttributes(Connection con, List<Log> logs,
+            Map<String, Map<String, Long>> attributes) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("INSERT INTO logs_attributes (log_id, attribute_id, value, grouping_num)"
+                + " VALUES (?, ?, ?, ?)");
+        boolean empty = true;
+        for (Log log : logs) {
+            if (log.getXmlProperties() == null) {
+                continue;
+            }
+            long i = 0;
+            for (XmlProperty p : log.getXmlProperties()) {
+                for (Map.Entry<String, String> att : p.getAttributes().entrySet()) {
+                    ps.setLong(1, log.getId());
+                    ps.setLong(2, attributes.get(p.getName()).get(att.getKey()));
+                    ps.setString(3, att.getValue());
+                    ps.setLong(4, i);
+                    ps.addBatch();
+                    empty = false;
+                }
+                i++;
+            }
+        }
+        if (!empty) {
+            ps.executeBatch();
+        }
+        ps.close();
+    }
+
+    /**
+     * Moves the version number and current log pointer of each entry to the
+     * log just inserted for it.
+     */
+    private static void updateEntries(Connection con, List<Log> logs) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("UPDATE entries SET version = ?, current_log_id = ? WHERE id = ?");
+        for (Log log : logs) {
+            Entry entry = log.getEntry();
+            entry.setVersion(entry.getVersion() + 1);
+            entry.setCurrentLogId(log.getId());
+            log.setVersion(String.valueOf(entry.getVersion()));
+            ps.setInt(1, entry.getVersion());
+            ps.setLong(2, log.getId());
+            ps.setLong(3, entry.getId());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("?");
+        for (int i = 1; i < count; i++) {
+            sb.append(", ?");
+        }
+        return sb.toString();
+    }
+
+    private static void rollback(Connection con) {
+        if (con != null) {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    /**
+     * Remove a tag (mark as Inactive).
+     *
+     * @param name tag name
+     */
+    public static void remove(Long id) throws CFException {
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            em.createQuery("UPDATE Log l SET l.state = :state WHERE l.entry.id = :entryId AND l.state = :active")
+                    .setParameter("state", State.Inactive)
+                    .setParameter("active", State.Active)
+                    .setParameter("entryId", id)
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+            LogCountCache.invalidate();
+            LogSearchIndex.remove(id);
         } catch (Exception e) {
+            JPAUtil.transactionFailed(em);
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
 
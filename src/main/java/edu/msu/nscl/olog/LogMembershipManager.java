@@ -0,0 +1,299 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.persistence.Cache;
+import javax.ws.rs.core.Response;
+
+/**
+ * Set-based changes of the logbook or tag membership of many log entries.
+ *
+ * The target entry ids are staged in a temporary table and the entries to
+ * change are computed by the database, so no log is loaded. All changes are
+ * applied in one transaction, either in place on the current version of
+ * each entry, or as new versions copying the current ones.
+ */
+public class LogMembershipManager {
+
+    public enum Operation {
+
+        /**
+         * Add the logbook to the target entries.
+         */
+        ADD,
+        /**
+         * Remove the logbook from the target entries.
+         */
+        REMOVE,
+        /**
+         * Add the logbook to the target entries and remove it from all others.
+         */
+        REPLACE
+    }
+
+    /**
+     * Number of rows per JDBC batch, and of entries copied per round when
+     * creating new versions.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    private LogMembershipManager() {
+    }
+
+    /**
+     * Changes the membership of a logbook or tag.
+     *
+     * @param logbookId id of the logbook or tag
+     * @param entryIds target entries
+     * @param operation how the membership changes
+     * @param versioned true to record the change as a new version of each
+     * changed entry, false to change the current versions in place
+     * @return number of changed entries
+     * @throws CFException on unknown entries, when an entry would be left
+     * without logbook, or wrapping an SQLException
+     */
+    public static int apply(Long logbookId, Collection<Long> entryIds, Operation operation, boolean versioned) throws CFException {
+        Connection con = null;
+        int changed;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            con.setAutoCommit(false);
+            stageTargets(con, entryIds);
+            stageChanges(con, logbookId, operation);
+            if (versioned) {
+                changed = applyVersioned(con, logbookId);
+            } else {
+                changed = applyInPlace(con, logbookId);
+            }
+            con.commit();
+        } catch (CFException e) {
+            rollback(con);
+            throw e;
+        } catch (SQLException e) {
+            rollback(con);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JDBC exception: " + e);
+        } finally {
+            close(con);
+        }
+        if (changed > 0) {
+            Cache cache = JPAUtil.getEntityManagerFactory().getCache();
+            cache.evict(Entry.class);
+            cache.evict(Log.class);
+            cache.evict(LogAttribute.class);
+            cache.evict(Logbook.class, logbookId);
+            cache.evict(Tag.class, logbookId);
+            LogCountCache.invalidate();
+        }
+        return changed;
+    }
+
+    /**
+     * Stores the target entry ids and checks that each has an active log.
+     */
+    private static void stageTargets(Connection con, Collection<Long> entryIds) throws SQLException, CFException {
+        Statement st = con.createStatement();
+        st.executeUpdate("DROP TEMPORARY TABLE IF EXISTS membership_targets");
+        st.executeUpdate("CREATE TEMPORARY TABLE membership_targets (entry_id INT(11) UNSIGNED NOT NULL PRIMARY KEY)");
+        st.executeUpdate("DROP TEMPORARY TABLE IF EXISTS membership_changes");
+        st.executeUpdate("CREATE TEMPORARY TABLE membership_changes (log_id INT(11) UNSIGNED NOT NULL PRIMARY KEY,"
+                + " entry_id INT(11) UNSIGNED NOT NULL, added TINYINT(1) NOT NULL)");
+        st.close();
+        PreparedStatement ps = con.prepareStatement("INSERT IGNORE INTO membership_targets (entry_id) VALUES (?)");
+        int count = 0;
+        for (Long id : entryIds) {
+            ps.setLong(1, id);
+            ps.addBatch();
+            if (++count % BATCH_SIZE == 0) {
+                ps.executeBatch();
+            }
+        }
+        ps.executeBatch();
+        ps.close();
+        ps = con.prepareStatement("SELECT t.entry_id FROM membership_targets t"
+                + " WHERE NOT EXISTS (SELECT 1 FROM logs l WHERE l.entry_id = t.entry_id AND l.state = ?) LIMIT 1");
+        ps.setString(1, State.Active.name());
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entry " + rs.getLong(1) + " does not exists.");
+        }
+        ps.close();
+    }
+
+    /**
+     * Computes the active logs gaining or losing the logbook, and checks
+     * that none of them loses its last logbook.
+     */
+    private static void stageChanges(Connection con, Long logbookId, Operation operation) throws SQLException, CFException {
+        PreparedStatement ps;
+        if (operation != Operation.REMOVE) {
+            ps = con.prepareStatement("INSERT INTO membership_changes (log_id, entry_id, added)"
+                    + " SELECT l.id, l.entry_id, 1 FROM membership_targets t"
+                    + " JOIN logs l ON l.entry_id = t.entry_id AND l.state = ?"
+                    + " WHERE NOT EXISTS (SELECT 1 FROM logs_logbooks ll WHERE ll.log_id = l.id AND ll.logbook_id = ?)");
+            ps.setString(1, State.Active.name());
+            ps.setLong(2, logbookId);
+            ps.executeUpdate();
+            ps.close();
+        }
+        if (operation == Operation.REMOVE) {
+            ps = con.prepareStatement("INSERT INTO membership_changes (log_id, entry_id, added)"
+                    + " SELECT l.id, l.entry_id, 0 FROM membership_targets t"
+                    + " JOIN logs l ON l.entry_id = t.entry_id AND l.state = ?"
+                    + " JOIN logs_logbooks ll ON ll.log_id = l.id AND ll.logbook_id = ?");
+        } else if (operation == Operation.REPLACE) {
+            ps = con.prepareStatement("INSERT INTO membership_changes (log_id, entry_id, added)"
+                    + " SELECT l.id, l.entry_id, 0 FROM logs_logbooks ll"
+                    + " JOIN logs l ON l.id = ll.log_id AND l.state = ?"
+                    + " WHERE ll.logbook_id = ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM membership_targets t WHERE t.entry_id = l.entry_id)");
+        } else {
+            return;
+        }
+        ps.setString(1, State.Active.name());
+        ps.setLong(2, logbookId);
+        ps.executeUpdate();
+        ps.close();
+        ps = con.prepareStatement("SELECT c.entry_id FROM membership_changes c WHERE c.added = 0"
+                + " AND NOT EXISTS (SELECT 1 FROM logs_logbooks ll JOIN logbooks b ON b.id = ll.logbook_id"
+                + " WHERE ll.log_id = c.log_id AND ll.logbook_id != ? AND b.is_tag = 0) LIMIT 1");
+        ps.setLong(1, logbookId);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Log entry " + rs.getLong(1) + " must be in at least one logbook.");
+        }
+        ps.close();
+    }
+
+    private static int applyInPlace(Connection con, Long logbookId) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("DELETE ll FROM logs_logbooks ll"
+                + " JOIN membership_changes c ON c.log_id = ll.log_id WHERE c.added = 0 AND ll.logbook_id = ?");
+        ps.setLong(1, logbookId);
+        int changed = ps.executeUpdate();
+        ps.close();
+        ps = con.prepareStatement("INSERT INTO logs_logbooks (log_id, logbook_id)"
+                + " SELECT c.log_id, ? FROM membership_changes c WHERE c.added = 1");
+        ps.setLong(1, logbookId);
+        changed += ps.executeUpdate();
+        ps.close();
+        return changed;
+    }
+
+    /**
+     * Copies the current log of each changed entry with its associations,
+     * and moves the entry to the copy, a round of {@link #BATCH_SIZE}
+     * entries at a time. Only the logbook differs between the two versions,
+     * so the replaced one keeps neither description nor attributes (see
+     * {@link LogHistory}); the attribute rows are moved to the copy.
+     */
+    private static int applyVersioned(Connection con, Long logbookId) throws SQLException {
+        PreparedStatement lock = con.prepareStatement("SELECT e.id FROM entries e"
+                + " JOIN membership_changes c ON c.entry_id = e.id FOR UPDATE");
+        lock.executeQuery().close();
+        lock.close();
+        PreparedStatement select = con.prepareStatement("SELECT log_id, entry_id, added FROM membership_changes"
+                + " WHERE log_id > ? ORDER BY log_id LIMIT " + BATCH_SIZE);
+        PreparedStatement copyLog = con.prepareStatement("INSERT INTO logs (modified, source, owner, state, level, description, entry_id)"
+                + " SELECT ?, source, owner, state, level, description, entry_id FROM logs WHERE id = ?",
+                Statement.RETURN_GENERATED_KEYS);
+        PreparedStatement deactivate = con.prepareStatement("UPDATE logs SET state = ?, description = '',"
+                + " description_unchanged = 1, attributes_unchanged = 1 WHERE id = ?");
+        PreparedStatement copyLogbooks = con.prepareStatement("INSERT INTO logs_logbooks (log_id, logbook_id)"
+                + " SELECT ?, logbook_id FROM logs_logbooks WHERE log_id = ? AND logbook_id != ?");
+        PreparedStatement addLogbook = con.prepareStatement("INSERT INTO logs_logbooks (log_id, logbook_id) VALUES (?, ?)");
+        PreparedStatement moveAttributes = con.prepareStatement("UPDATE logs_attributes SET log_id = ? WHERE log_id = ?");
+        PreparedStatement updateEntry = con.prepareStatement("UPDATE entries SET version = version + 1, current_log_id = ? WHERE id = ?");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int changed = 0;
+        long last = 0;
+        while (true) {
+            List<long[]> rows = new ArrayList<long[]>();
+            select.setLong(1, last);
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+                rows.add(new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+            }
+            rs.close();
+            if (rows.isEmpty()) {
+                break;
+            }
+            for (long[] row : rows) {
+                copyLog.setTimestamp(1, now);
+                copyLog.setLong(2, row[0]);
+                copyLog.addBatch();
+                deactivate.setString(1, State.Inactive.name());
+                deactivate.setLong(2, row[0]);
+                deactivate.addBatch();
+            }
+            copyLog.executeBatch();
+            ResultSet keys = copyLog.getGeneratedKeys();
+            for (long[] row : rows) {
+                keys.next();
+                long newLogId = keys.getLong(1);
+                copyLogbooks.setLong(1, newLogId);
+                copyLogbooks.setLong(2, row[0]);
+                copyLogbooks.setLong(3, logbookId);
+                copyLogbooks.addBatch();
+                if (row[2] == 1) {
+                    addLogbook.setLong(1, newLogId);
+                    addLogbook.setLong(2, logbookId);
+                    addLogbook.addBatch();
+                }
+                moveAttributes.setLong(1, newLogId);
+                moveAttributes.setLong(2, row[0]);
+                moveAttributes.addBatch();
+                updateEntry.setLong(1, newLogId);
+                updateEntry.setLong(2, row[1]);
+                updateEntry.addBatch();
+            }
+            keys.close();
+            deactivate.executeBatch();
+            copyLogbooks.executeBatch();
+            addLogbook.executeBatch();
+            moveAttributes.executeBatch();
+            updateEntry.executeBatch();
+            changed += rows.size();
+            last = rows.get(rows.size() - 1)[0];
+        }
+        select.close();
+        copyLog.close();
+        deactivate.close();
+        copyLogbooks.close();
+        addLogbook.close();
+        moveAttributes.close();
+        updateEntry.close();
+        return changed;
+    }
+
+    private static void rollback(Connection con) {
+        if (con != null) {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private static void close(Connection con) {
+        if (con != null) {
+            try {
+                Statement st = con.createStatement();
+                st.executeUpdate("DROP TEMPORARY TABLE IF EXISTS membership_targets, membership_changes");
+                st.close();
+            } catch (SQLException e) {
+            }
+            try {
+                con.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
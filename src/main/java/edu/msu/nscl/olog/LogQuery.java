@@ -0,0 +1,406 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Parsed form of the query parameters accepted by GET .../logs, along with
+ * the values LogManager resolves for them before running the SQL query.
+ *
+ * Patterns using the <tt>*</tt> and <tt>?</tt> wildcards are translated to
+ * their SQL <tt>LIKE</tt> equivalents, escaped wildcards are taken literally.
+ *
+ * Results are paged either by <tt>page</tt>/<tt>limit</tt> or, for deep
+ * browsing, by an opaque <tt>cursor</tt> holding the position (entry created
+ * date, entry id) of the last log of the previous page. An empty cursor
+ * starts at the newest log.
+ *
+ * The <tt>count</tt> parameter selects how the total number of matches is
+ * reported: <tt>exact</tt> (default), <tt>estimate</tt> or <tt>none</tt>.
+ */
+public class LogQuery {
+
+    public enum CountMode {
+
+        NONE, ESTIMATE, EXACT
+    }
+
+    private List<String> logPatterns = new ArrayList<String>();
+    private List<String> logbookMatches = new ArrayList<String>();
+    private List<String> logbookPatterns = new ArrayList<String>();
+    private List<String> tagMatches = new ArrayList<String>();
+    private List<String> tagPatterns = new ArrayList<String>();
+    private List<String> propertyMatches = new ArrayList<String>();
+    private List<String> propertyPatterns = new ArrayList<String>();
+    private Multimap<String, String> valuePatterns = ArrayListMultimap.create();
+    private Date start = null;
+    private Date end = null;
+    private Integer page = null;
+    private Integer limit = null;
+    private boolean empty = false;
+    private boolean cursor = false;
+    private Date cursorCreated = null;
+    private Long cursorEntryId = null;
+    private CountMode countMode = CountMode.EXACT;
+    private String normalized;
+    private List<List<Long>> indexHits;
+    private List<String> indexHitKeys;
+    private List<String> attachmentHits;
+    private Long[] entryIdRange;
+
+    /**
+     * Parameters that select a page or the count mode, not the matching logs.
+     */
+    private static final Set<String> PAGING_KEYS = new HashSet<String>(
+            Arrays.asList("page", "limit", "cursor", "count", "empty"));
+
+    private LogQuery() {
+    }
+
+    /**
+     * Parses the query parameters of a log search.
+     *
+     * @param matches multivalued map of logbook, tag, property, date and
+     * pagination parameters
+     * @return parsed query
+     * @throws CFException on malformed numeric parameters
+     */
+    public static LogQuery parse(MultivaluedMap<String, String> matches) throws CFException {
+        LogQuery query = new LogQuery();
+        String startValue = null, endValue = null, pageValue = null, limitValue = null, cursorValue = null;
+        SortedMap<String, List<String>> filters = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> match : matches.entrySet()) {
+            String key = match.getKey().toLowerCase();
+            Collection<String> matchesValues = match.getValue();
+            if (!PAGING_KEYS.contains(key)) {
+                List<String> sorted = new ArrayList<String>(matchesValues);
+                Collections.sort(sorted);
+                filters.put(key, sorted);
+            }
+            if (key.equals("search")) {
+                for (String m : matchesValues) {
+                    query.logPatterns.add(toPattern(m));
+                }
+            } else if (key.equals("tag")) {
+                addMatchesAndPatterns(matchesValues, query.tagMatches, query.tagPatterns);
+            } else if (key.equals("logbook")) {
+                addMatchesAndPatterns(matchesValues, query.logbookMatches, query.logbookPatterns);
+            } else if (key.equals("property")) {
+                for (String m : matchesValues) {
+                    if (isPattern(m)) {
+                        query.propertyPatterns.add(toPattern(m));
+                    } else {
+                        query.propertyMatches.add(unescape(m));
+                    }
+                }
+            } else if (key.equals("page")) {
+                pageValue = matchesValues.iterator().next();
+            } else if (key.equals("limit")) {
+                limitValue = matchesValues.iterator().next();
+            } else if (key.equals("start")) {
+                startValue = matchesValues.iterator().next();
+            } else if (key.equals("end")) {
+                endValue = matchesValues.iterator().next();
+            } else if (key.equals("empty")) {
+                query.empty = true;
+            } else if (key.equals("cursor")) {
+                cursorValue = matchesValues.iterator().next();
+                query.cursor = true;
+            } else if (key.equals("count")) {
+                try {
+                    query.countMode = CountMode.valueOf(matchesValues.iterator().next().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new CFException(Response.Status.BAD_REQUEST,
+                            "Unknown count mode: " + matchesValues.iterator().next());
+                }
+            } else {
+                Collection<String> cleanedMatchesValues = new HashSet<String>();
+                for (String m : matchesValues) {
+                    cleanedMatchesValues.add(toPattern(m));
+                }
+                query.valuePatterns.putAll(key, cleanedMatchesValues);
+            }
+        }
+        try {
+            if (startValue != null || endValue != null) {
+                query.start = startValue != null
+                        ? new Date(Long.valueOf(startValue) * 1000)
+                        : new Date(0);
+                query.end = endValue != null
+                        ? new Date(Long.valueOf(endValue) * 1000)
+                        : new Date(Calendar.getInstance().getTime().getTime());
+            }
+            if (query.cursor) {
+                if (limitValue != null) {
+                    query.limit = Integer.valueOf(limitValue);
+                }
+                if (cursorValue != null && !cursorValue.isEmpty()) {
+                    query.decodeCursor(cursorValue);
+                }
+            } else if (pageValue != null && limitValue != null) {
+                query.page = Integer.valueOf(pageValue);
+                query.limit = Integer.valueOf(limitValue);
+            }
+        } catch (NumberFormatException e) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Malformed log query parameter: " + e.getMessage());
+        }
+        query.normalized = filters.toString();
+        return query;
+    }
+
+    /**
+     * Encodes the position of a log in the (created, entry id) ordering as a
+     * cursor for the following page.
+     *
+     * @param created entry created date
+     * @param entryId entry id
+     * @return opaque cursor
+     */
+    public static String encodeCursor(Date created, Long entryId) {
+        try {
+            return DatatypeConverter.printHexBinary((created.getTime() + ":" + entryId).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void decodeCursor(String value) throws CFException {
+        try {
+            String[] position = new String(DatatypeConverter.parseHexBinary(value), "UTF-8").split(":");
+            if (position.length != 2) {
+                throw new IllegalArgumentException(value);
+            }
+            cursorCreated = new Date(Long.valueOf(position[0]));
+            cursorEntryId = Long.valueOf(position[1]);
+        } catch (IllegalArgumentException e) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Malformed cursor: " + value);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void addMatchesAndPatterns(Collection<String> values, List<String> exact, List<String> patterns) {
+        for (String m : values) {
+            if (isPattern(m)) {
+                patterns.add(toPattern(m));
+            } else {
+                exact.add(unescape(m));
+            }
+        }
+        if (exact.size() == 1) {
+            String match1 = exact.get(0);
+            exact.clear();
+            exact.addAll(Arrays.asList(match1.split(",")));
+        }
+    }
+
+    /**
+     * True for values containing unescaped wildcards.
+     */
+    private static boolean isPattern(String m) {
+        return (m.contains("?") || m.contains("*"))
+                && !(m.contains("\\?") || m.contains("\\*"));
+    }
+
+    private static String unescape(String m) {
+        if (m.contains("\\?") || m.contains("\\*")) {
+            return m.replace("\\", "");
+        }
+        return m;
+    }
+
+    private static String toPattern(String m) {
+        if (isPattern(m)) {
+            return m.replace("*", "%").replace("?", "_");
+        }
+        return unescape(m);
+    }
+
+    public List<String> getLogPatterns() {
+        return logPatterns;
+    }
+
+    public List<String> getLogbookMatches() {
+        return logbookMatches;
+    }
+
+    public List<String> getLogbookPatterns() {
+        return logbookPatterns;
+    }
+
+    public List<String> getTagMatches() {
+        return tagMatches;
+    }
+
+    public List<String> getTagPatterns() {
+        return tagPatterns;
+    }
+
+    public List<String> getPropertyMatches() {
+        return propertyMatches;
+    }
+
+    public List<String> getPropertyPatterns() {
+        return propertyPatterns;
+    }
+
+    /**
+     * @return attribute value patterns keyed by <tt>property.attribute</tt>
+     */
+    public Multimap<String, String> getValuePatterns() {
+        return valuePatterns;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public boolean hasDateRange() {
+        return start != null;
+    }
+
+    public boolean isPaginated() {
+        return page != null && limit != null;
+    }
+
+    /**
+     * @return true if the query pages by cursor instead of page number
+     */
+    public boolean hasCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return created date of the last log of the previous page, null on
+     * the first page
+     */
+    public Date getCursorCreated() {
+        return cursorCreated;
+    }
+
+    public Long getCursorEntryId() {
+        return cursorEntryId;
+    }
+
+    /**
+     * @return index of the first result of the requested page
+     */
+    public int getFirstResult() {
+        return page * limit - limit;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    /**
+     * Canonical form of the filter parameters (lower case keys, sorted keys
+     * and values), identical for queries matching the same logs.
+     *
+     * @return normalized filters
+     */
+    public String getNormalized() {
+        return normalized;
+    }
+
+    /**
+     * @return true if any filter beyond the active state applies
+     */
+    public boolean isFiltered() {
+        return needsDistinct() || !logPatterns.isEmpty() || start != null;
+    }
+
+    /**
+     * @return candidate entry ids from the full-text index per search term,
+     * null elements for terms the index cannot answer
+     */
+    public List<List<Long>> getIndexHits() {
+        return indexHits;
+    }
+
+    public void setIndexHits(List<List<Long>> indexHits) {
+        this.indexHits = indexHits;
+    }
+
+    /**
+     * @return keys of the staged index candidates per search term, null
+     * elements for terms without candidates
+     */
+    public List<String> getIndexHitKeys() {
+        return indexHitKeys;
+    }
+
+    public void setIndexHitKeys(List<String> indexHitKeys) {
+        this.indexHitKeys = indexHitKeys;
+    }
+
+    /**
+     * @return keys of the stored attachment hits per search term, null
+     * elements for terms without matching attachments
+     */
+    public List<String> getAttachmentHits() {
+        return attachmentHits;
+    }
+
+    public void setAttachmentHits(List<String> attachmentHits) {
+        this.attachmentHits = attachmentHits;
+    }
+
+    /**
+     * @return smallest and largest id of the entries in the date range
+     */
+    public Long[] getEntryIdRange() {
+        return entryIdRange;
+    }
+
+    public void setEntryIdRange(Long[] entryIdRange) {
+        this.entryIdRange = entryIdRange;
+    }
+
+    /**
+     * @return true if a filter needs the logbook/tag association table
+     */
+    public boolean joinsLogbooks() {
+        return !logbookMatches.isEmpty() || !logbookPatterns.isEmpty();
+    }
+
+    public boolean joinsTags() {
+        return !tagMatches.isEmpty() || !tagPatterns.isEmpty();
+    }
+
+    public boolean joinsAttributes() {
+        return !propertyMatches.isEmpty() || !propertyPatterns.isEmpty()
+                || !valuePatterns.isEmpty();
+    }
+
+    /**
+     * @return true if the filters join a collection and rows have to be made
+     * distinct
+     */
+    public boolean needsDistinct() {
+        return joinsLogbooks() || joinsTags() || joinsAttributes();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import org.eclipse.persistence.internal.jpa.EJBQueryImpl;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.DatabaseRecord;
+
+/**
+ * Cache of prepared log search queries, keyed by the shape of the search
+ * parameters (which filters are present, how many values, wildcard or exact).
+ * Searches of the same shape only differ in their positional parameter
+ * values, so a hit skips building the JPQL, parsing it and generating its
+ * SQL: each search runs on a clone of the prepared query.
+ */
+public class LogQueryPlanCache {
+
+    /**
+     * Upper bound on cached shapes; the cache is cleared when exceeded.
+     */
+    private static final int MAX_ENTRIES = 500;
+    private static final ConcurrentMap<String, DatabaseQuery> plans = new ConcurrentHashMap<String, DatabaseQuery>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private LogQueryPlanCache() {
+    }
+
+    /**
+     * Returns a query of the prepared plan of a shape.
+     *
+     * @param em entity manager to run the query in
+     * @param shape query shape
+     * @return query to bind, or null on a miss
+     */
+    public static Query get(EntityManager em, String shape) {
+        DatabaseQuery plan = plans.get(shape);
+        if (plan == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return JpaHelper.createQuery((DatabaseQuery) plan.clone(), em);
+    }
+
+    /**
+     * Prepares and caches the plan of a shape.
+     *
+     * @param em entity manager to run the query in
+     * @param shape query shape
+     * @param jpql query with positional parameters
+     * @return query to bind
+     */
+    public static Query put(EntityManager em, String shape, String jpql) {
+        AbstractSession session = (AbstractSession) JpaHelper.getServerSession(em.getEntityManagerFactory());
+        DatabaseQuery plan = EJBQueryImpl.buildEJBQLDatabaseQuery(jpql, session);
+        plan.checkPrepare(session, new DatabaseRecord());
+        if (plans.size() >= MAX_ENTRIES) {
+            plans.clear();
+        }
+        plans.put(shape, plan);
+        return JpaHelper.createQuery((DatabaseQuery) plan.clone(), em);
+    }
+
+    public static int size() {
+        return plans.size();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+}
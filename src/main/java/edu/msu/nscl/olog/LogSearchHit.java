@@ -0,0 +1,44 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+import javax.persistence.*;
+
+/**
+ * Candidate entry of a log search, staged from the full-text index. Rows
+ * are written by LogSearchIndex and only read in log search subqueries.
+ */
+@Entity
+@Table(name = "log_search_hits")
+@IdClass(LogSearchHitId.class)
+public class LogSearchHit implements Serializable {
+
+    @Id
+    @Column(name = "search_key")
+    private String searchKey;
+    @Id
+    @Column(name = "entry_id")
+    private Long entryId;
+
+    public LogSearchHit() {
+    }
+
+    public String getSearchKey() {
+        return searchKey;
+    }
+
+    public void setSearchKey(String searchKey) {
+        this.searchKey = searchKey;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+}
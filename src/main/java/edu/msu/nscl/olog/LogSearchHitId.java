@@ -0,0 +1,60 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+
+/**
+ * Primary key of LogSearchHit.
+ */
+public class LogSearchHitId implements Serializable {
+
+    private String searchKey;
+
+    private Long entryId;
+
+    public String getSearchKey() {
+        return searchKey;
+    }
+
+    public void setSearchKey(String searchKey) {
+        this.searchKey = searchKey;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 89 * hash + (this.searchKey != null ? this.searchKey.hashCode() : 0);
+        hash = 89 * hash + (this.entryId != null ? this.entryId.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final LogSearchHitId other = (LogSearchHitId) obj;
+        if ((this.searchKey == null) ? (other.searchKey != null) : !this.searchKey.equals(other.searchKey)) {
+            return false;
+        }
+        if (this.entryId != other.entryId && (this.entryId == null || !this.entryId.equals(other.entryId))) {
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,526 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.Response;
+import org.apache.lucene.analysis.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.eclipse.persistence.config.QueryHints;
+
+/**
+ * Embedded full-text index over the description of the active version of
+ * every log entry, kept in local Lucene files.
+ *
+ * Descriptions are split on whitespace, lower cased and folded to ASCII, so
+ * that like the case and accent insensitive collation of the logs table,
+ * "résumé" and "resume" are the same word. Each piece of a
+ * <tt>LIKE</tt> search pattern between wildcards maps to whole words, with
+ * the words next to a wildcard matched as word prefix or suffix. The index
+ * only yields candidate entries; the SQL pattern is still applied to them.
+ * Up to {@link #MAX_INLINE_CANDIDATES} candidates are listed in the query;
+ * more are staged in the log_search_hits table for the query to semi-join.
+ * Until a complete build of the index exists, searches fall back to the SQL
+ * scan.
+ *
+ * Each document records the id of the log it was built from. Log ids grow
+ * with every version, so an update that loses the race against a newer
+ * version of the same entry is skipped instead of overwriting it.
+ */
+public class LogSearchIndex {
+
+    private static final Version VERSION = Version.LUCENE_36;
+    private static final String DEFAULT_DIRECTORY = "olog-index";
+    private static final String COMPLETE = "complete";
+    private static final String FORMAT = "format";
+    /**
+     * Version of the document and analyzer layout; an index written with
+     * another one is rebuilt.
+     */
+    private static final String FORMAT_VERSION = "3";
+    /**
+     * Largest number of candidates a search lists in its SQL text instead of
+     * staging them.
+     */
+    public static final int MAX_INLINE_CANDIDATES = 1000;
+    /**
+     * Number of candidates staged per insert statement.
+     */
+    private static final int STAGE_BATCH_SIZE = 1000;
+    /**
+     * Above this number of candidates the index is not selective and the
+     * search falls back to the SQL scan.
+     */
+    private static final int MAX_CANDIDATES = 10000;
+    private static final int REBUILD_BATCH_SIZE = 1000;
+    private static final Analyzer analyzer = new Analyzer() {
+
+        @Override
+        public TokenStream tokenStream(String fieldName, Reader reader) {
+            return new ASCIIFoldingFilter(new LowerCaseFilter(VERSION, new WhitespaceTokenizer(VERSION, reader)));
+        }
+    };
+    private static final Logger log = Logger.getLogger(LogSearchIndex.class.getName());
+    private static final Object lock = new Object();
+    private static IndexWriter writer;
+    private static SearcherManager searcherManager;
+    private static volatile boolean complete = false;
+    private static volatile boolean rebuilding = false;
+
+    private LogSearchIndex() {
+    }
+
+    /**
+     * Opens the index, starting a rebuild when no complete index exists.
+     * Candidates staged before a restart are dropped.
+     *
+     * @param path index directory, null for <tt>olog-index</tt> in the
+     * working directory
+     */
+    public static void open(String path) {
+        clearCandidates();
+        try {
+            Directory directory = FSDirectory.open(new File(path == null || path.trim().length() == 0
+                    ? DEFAULT_DIRECTORY : path.trim()));
+            complete = false;
+            if (IndexReader.indexExists(directory)) {
+                IndexReader reader = IndexReader.open(directory);
+                try {
+                    Map<String, String> userData = reader.getIndexCommit().getUserData();
+                    complete = "true".equals(userData.get(COMPLETE)) && FORMAT_VERSION.equals(userData.get(FORMAT));
+                } finally {
+                    reader.close();
+                }
+            }
+            IndexWriterConfig config = new IndexWriterConfig(VERSION, analyzer);
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            writer = new IndexWriter(directory, config);
+            searcherManager = new SearcherManager(writer, true, null);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Could not open log search index", e);
+            return;
+        }
+        if (!complete) {
+            rebuild();
+        }
+    }
+
+    public static void close() {
+        try {
+            if (searcherManager != null) {
+                searcherManager.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close log search index", e);
+        }
+    }
+
+    /**
+     * Indexes the active version of an entry, replacing the previous one
+     * unless a newer version is indexed already.
+     *
+     * @param log new active log
+     */
+    public static void update(Log log) {
+        updateAll(Collections.singletonList(log));
+    }
+
+    /**
+     * Indexes the active versions of several entries with a single commit,
+     * skipping those older than the indexed version of their entry.
+     *
+     * @param logs new active logs
+     */
+    public static void updateAll(Collection<Log> logs) {
+        if (writer == null) {
+            return;
+        }
+        Map<Long, Log> newest = new HashMap<Long, Log>();
+        for (Log l : logs) {
+            Log other = newest.get(l.getEntryId());
+            if (other == null || other.getId() < l.getId()) {
+                newest.put(l.getEntryId(), l);
+            }
+        }
+        synchronized (lock) {
+            try {
+                for (Log l : newest.values()) {
+                    Long indexed = indexedLogId(l.getEntryId());
+                    if (indexed == null || indexed < l.getId()) {
+                        writer.updateDocument(new Term("entry", l.getEntryId().toString()), toDocument(l));
+                    }
+                }
+                commit();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Id of the log indexed for an entry. Called under the index lock: every
+     * write commits and refreshes the searcher before releasing it.
+     *
+     * @return log id, null if the entry is not indexed
+     */
+    private static Long indexedLogId(Long entryId) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopDocs docs = searcher.search(new TermQuery(new Term("entry", entryId.toString())), 1);
+            if (docs.totalHits == 0) {
+                return null;
+            }
+            String logId = searcher.doc(docs.scoreDocs[0].doc).get("log");
+            return logId == null ? null : Long.valueOf(logId);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Removes an entry from the index.
+     *
+     * @param entryId entry id
+     */
+    public static void remove(Long entryId) {
+        if (writer == null) {
+            return;
+        }
+        synchronized (lock) {
+            try {
+                writer.deleteDocuments(new Term("entry", entryId.toString()));
+                commit();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Entry ids whose description may match a <tt>LIKE</tt> pattern.
+     *
+     * @param pattern SQL pattern with % and _ wildcards
+     * @return candidate entry ids, or null if the index cannot answer and
+     * the pattern has to be applied to all logs
+     */
+    public static List<Long> findCandidates(String pattern) {
+        if (!complete || rebuilding || searcherManager == null) {
+            return null;
+        }
+        Query query = toQuery(pattern);
+        if (query == null) {
+            return null;
+        }
+        final List<Long> ids = new ArrayList<Long>();
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                searcher.search(query, new Collector() {
+
+                    private long[] entries;
+
+                    @Override
+                    public void setScorer(Scorer scorer) {
+                    }
+
+                    @Override
+                    public void collect(int doc) {
+                        ids.add(entries[doc]);
+                    }
+
+                    @Override
+                    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+                        entries = FieldCache.DEFAULT.getLongs(reader, "entry");
+                    }
+
+                    @Override
+                    public boolean acceptsDocsOutOfOrder() {
+                        return true;
+                    }
+                });
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Log search index lookup failed", e);
+            return null;
+        } catch (BooleanQuery.TooManyClauses e) {
+            return null;
+        }
+        return ids.size() > MAX_CANDIDATES ? null : ids;
+    }
+
+    /**
+     * Translates a <tt>LIKE</tt> pattern into a conjunction of word queries.
+     * Words at the edges of a piece followed or preceded by a wildcard are
+     * matched as suffix or prefix of an indexed word.
+     */
+    private static Query toQuery(String pattern) {
+        BooleanQuery query = new BooleanQuery();
+        String lower = fold(pattern.toLowerCase(Locale.ROOT));
+        int start = 0;
+        while (start <= lower.length()) {
+            int end = start;
+            while (end < lower.length() && lower.charAt(end) != '%' && lower.charAt(end) != '_') {
+                end++;
+            }
+            boolean openStart = start > 0;
+            boolean openEnd = end < lower.length();
+            String piece = lower.substring(start, end);
+            String[] words = piece.trim().split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].isEmpty()) {
+                    continue;
+                }
+                // a wildcard before the word: it may end an indexed word,
+                // a wildcard after it: it may start one
+                boolean wildBefore = i == 0 && openStart && !Character.isWhitespace(piece.charAt(0));
+                boolean wildAfter = i == words.length - 1 && openEnd
+                        && !Character.isWhitespace(piece.charAt(piece.length() - 1));
+                if (wildBefore) {
+                    Term term = new Term("description", "*" + words[i] + (wildAfter ? "*" : ""));
+                    query.add(new WildcardQuery(term), BooleanClause.Occur.MUST);
+                } else if (wildAfter) {
+                    query.add(new PrefixQuery(new Term("description", words[i])), BooleanClause.Occur.MUST);
+                } else {
+                    query.add(new TermQuery(new Term("description", words[i])), BooleanClause.Occur.MUST);
+                }
+            }
+            start = end + 1;
+        }
+        return query.clauses().isEmpty() ? null : query;
+    }
+
+    /**
+     * Folds accented characters the way the analyzer does.
+     */
+    private static String fold(String s) {
+        char[] input = s.toCharArray();
+        char[] output = new char[input.length * 4];
+        int length = ASCIIFoldingFilter.foldToASCII(input, 0, output, 0, input.length);
+        return new String(output, 0, length);
+    }
+
+    /**
+     * Stores candidate entry ids in the log_search_hits table, so that a log
+     * search semi-joins them instead of listing them in the SQL text; only
+     * used above {@link #MAX_INLINE_CANDIDATES}.
+     *
+     * @param candidates entry ids
+     * @return key of the staged candidates, to drop with
+     * {@link #dropCandidates}
+     */
+    public static String stageCandidates(List<Long> candidates) throws CFException {
+        String key = UUID.randomUUID().toString().replace("-", "");
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            for (int i = 0; i < candidates.size(); i += STAGE_BATCH_SIZE) {
+                List<Long> chunk = candidates.subList(i, Math.min(candidates.size(), i + STAGE_BATCH_SIZE));
+                StringBuilder sql = new StringBuilder("INSERT IGNORE INTO log_search_hits (search_key, entry_id) VALUES ");
+                for (int j = 0; j < chunk.size(); j++) {
+                    sql.append(j == 0 ? "(?, ?)" : ", (?, ?)");
+                }
+                PreparedStatement ps = con.prepareStatement(sql.toString());
+                int p = 1;
+                for (Long id : chunk) {
+                    ps.setString(p++, key);
+                    ps.setLong(p++, id);
+                }
+                ps.executeUpdate();
+                ps.close();
+            }
+            return key;
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Search: could not stage index candidates. " + e);
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * Deletes the candidates staged for a finished search.
+     */
+    public static void dropCandidates(String key) {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM log_search_hits WHERE search_key = ?");
+            ps.setString(1, key);
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not drop staged index candidates", e);
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void clearCandidates() {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM log_search_hits");
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not clear staged index candidates", e);
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void close(Connection con) {
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the active logs in the background.
+     *
+     * @return false if a rebuild is already running
+     */
+    public static boolean rebuild() {
+        synchronized (lock) {
+            if (rebuilding || writer == null) {
+                return false;
+            }
+            rebuilding = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    rebuildIndex();
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Log search index rebuild failed", e);
+                } finally {
+                    rebuilding = false;
+                }
+            }
+        }, "olog-index-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Reads the active logs in id order; each batch is read and written
+     * under the index lock, so concurrent updates of newer versions are
+     * never overwritten by older ones.
+     */
+    private static void rebuildIndex() throws IOException {
+        synchronized (lock) {
+            complete = false;
+            writer.deleteAll();
+            writer.commit(userData(false));
+        }
+        Long last = 0L;
+        int count = 0;
+        while (true) {
+            synchronized (lock) {
+                EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+                List<Log> logs;
+                try {
+                    logs = em.createQuery("SELECT l FROM Log l WHERE l.state = :state AND l.id > :last ORDER BY l.id", Log.class)
+                            .setParameter("state", State.Active)
+                            .setParameter("last", last)
+                            .setHint(QueryHints.BATCH, "l.entry")
+                            .setMaxResults(REBUILD_BATCH_SIZE)
+                            .getResultList();
+                    for (Log l : logs) {
+                        writer.updateDocument(new Term("entry", l.getEntryId().toString()), toDocument(l));
+                        last = l.getId();
+                    }
+                } finally {
+                    em.close();
+                }
+                count += logs.size();
+                if (logs.size() < REBUILD_BATCH_SIZE) {
+                    complete = true;
+                    commit();
+                    log.info("Log search index rebuilt with " + count + " entries");
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Document toDocument(Log l) {
+        Document doc = new Document();
+        doc.add(new Field("entry", l.getEntryId().toString(), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field("log", l.getId().toString(), Field.Store.YES, Field.Index.NO));
+        doc.add(new Field("description", l.getDescription() == null ? "" : l.getDescription(), Field.Store.NO, Field.Index.ANALYZED_NO_NORMS));
+        return doc;
+    }
+
+    private static void commit() throws IOException {
+        writer.commit(userData(complete));
+        searcherManager.maybeRefresh();
+    }
+
+    private static Map<String, String> userData(boolean complete) {
+        Map<String, String> userData = new HashMap<String, String>();
+        userData.put(COMPLETE, String.valueOf(complete));
+        userData.put(FORMAT, FORMAT_VERSION);
+        return userData;
+    }
+
+    /**
+     * A lost update leaves the index incomplete; searches fall back to SQL
+     * until the next rebuild.
+     */
+    private static void failed(IOException e) {
+        complete = false;
+        log.log(Level.SEVERE, "Log search index update failed, index disabled until rebuilt", e);
+    }
+
+    public static boolean isComplete() {
+        return complete;
+    }
+
+    public static boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    public static int numDocs() {
+        try {
+            return writer == null ? 0 : writer.numDocs();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
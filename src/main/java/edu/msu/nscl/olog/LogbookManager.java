@@ -67,6 +67,10 @@ public class LogbookManager {
      * @throws CFException wrapping an SQLException
      */
     public static Logbook findLogbook(String name) throws CFException {
+        Logbook cached = NameCache.find(Logbook.class, name);
+        if (cached != null) {
+            return cached;
+        }
         em = JPAUtil.getEntityManagerFactory().createEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Logbook> cq = cb.createQuery(Logbook.class);
@@ -88,6 +92,9 @@ public class LogbookManager {
                 }
             }
 
+            if (result != null) {
+                NameCache.put(Logbook.class, name, result.getId());
+            }
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -119,6 +126,7 @@ public class LogbookManager {
                 xmlLogbook.setOwner(owner);
                 xmlLogbook.setState(State.Active);
                 JPAUtil.save(xmlLogbook);
+                NameCache.put(Logbook.class, name, xmlLogbook.getId());
                 return xmlLogbook;
             }
              
@@ -15,6 +15,8 @@ import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
@@ -227,6 +229,77 @@ public class LogbooksResource {
         }
     }
 
+    /**
+     * PUT method for adding the logbook identified by <tt>logbook</tt> to all logs
+     * in the payload, in one transaction.
+     * With <tt>versions=false</tt> the current versions of the logs are changed
+     * in place instead of creating new versions.
+     *
+     * @param logbook URI path parameter: logbook name
+     * @param versions query parameter: create new versions of changed logs
+     * @param data logs to add <tt>logbook</tt> to
+     * @return HTTP Response
+     */
+    @PUT
+    @Path("{logbookName}/logs")
+    @Consumes({"application/xml", "application/json"})
+    public Response addMultiple(@PathParam("logbookName") String logbook,
+            @QueryParam("versions") @DefaultValue("true") boolean versions, Logs data) {
+        OlogImpl cm = OlogImpl.getInstance();
+        UserManager um = UserManager.getInstance();
+        um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
+        Logbook result = null;
+        try {
+            if (!um.userHasAdminRole()) {
+                cm.checkUserBelongsToGroup(um.getUserName(), cm.findLogbookByName(logbook));
+            }
+            result = cm.addLogbookToLogs(logbook, data, versions);
+            Response r = Response.ok(result).build();
+            audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|PUT|OK|" + r.getStatus()
+                    + "|data=" + Logs.toLogger(data));
+            return r;
+        } catch (CFException e) {
+            log.warning(um.getUserName() + "|" + uriInfo.getPath() + "|PUT|ERROR|" + e.getResponseStatusCode()
+                    + "|data=" + Logs.toLogger(data) + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * DELETE method for removing the logbook identified by <tt>logbook</tt> from all
+     * logs in the payload, in one transaction.
+     * With <tt>versions=false</tt> the current versions of the logs are changed
+     * in place instead of creating new versions.
+     *
+     * @param logbook URI path parameter: logbook name
+     * @param versions query parameter: create new versions of changed logs
+     * @param data logs to remove <tt>logbook</tt> from
+     * @return HTTP Response
+     */
+    @DELETE
+    @Path("{logbookName}/logs")
+    @Consumes({"application/xml", "application/json"})
+    public Response removeMultiple(@PathParam("logbookName") String logbook,
+            @QueryParam("versions") @DefaultValue("true") boolean versions, Logs data) {
+        OlogImpl cm = OlogImpl.getInstance();
+        UserManager um = UserManager.getInstance();
+        um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
+        try {
+            if (!um.userHasAdminRole()) {
+                cm.checkUserBelongsToGroup(um.getUserName(), cm.findLogbookByName(logbook));
+            }
+            cm.removeLogbookFromLogs(logbook, data, versions);
+            Response r = Response.ok().build();
+            audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|DELETE|OK|" + r.getStatus()
+                    + "|data=" + Logs.toLogger(data));
+            return r;
+        } catch (CFException e) {
+            log.warning(um.getUserName() + "|" + uriInfo.getPath() + "|DELETE|ERROR|" + e.getResponseStatusCode()
+                    + "|data=" + Logs.toLogger(data) + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
     /**
      * PUT method for adding the logbook identified by <tt>logbook</tt> to the log
      * <tt>id</tt> (both path parameters).
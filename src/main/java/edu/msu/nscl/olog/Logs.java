@@ -23,6 +23,7 @@ import javax.xml.bind.annotation.XmlTransient;
 public class Logs extends ArrayList<Log> {
 
     private Long count;
+    private String next;
     
     /**
      * Creates a new instance of Logs.
@@ -52,6 +53,20 @@ public class Logs extends ArrayList<Log> {
         this.count = count;
     }
 
+    /**
+     * Cursor of the page following this one, if any (cursor paging only).
+     *
+     * @return next cursor
+     */
+    @XmlAttribute(name = "next")
+    public String getNext() {
+        return this.next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+
     /**
      * Returns a collection of Log.
      *
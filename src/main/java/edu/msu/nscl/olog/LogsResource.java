@@ -6,8 +6,14 @@
 
 package edu.msu.nscl.olog;
 
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.jersey.api.json.JSONJAXBContext;
+import com.sun.jersey.api.json.JSONMarshaller;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Logger;
 import javax.jcr.RepositoryException;
@@ -25,7 +31,11 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 /**
  * Top level Jersey HTTP methods for the .../logs URL
@@ -52,6 +62,9 @@ public class LogsResource {
     /**
      * GET method for retrieving a collection of Log instances,
      * based on a multi-parameter query specifying patterns for tag and logbook details to match against.
+     * Pages are selected with <tt>page</tt> and <tt>limit</tt>, or with <tt>cursor</tt> and <tt>limit</tt>
+     * where the cursor is the <tt>next</tt> attribute of the previous page (empty for the first page).
+     * <tt>count=exact|estimate|none</tt> selects how the total in the <tt>count</tt> attribute is computed.
      *
      * @return HTTP Response
      */
@@ -75,6 +88,9 @@ public class LogsResource {
 
     /**
      * POST method for creating multiple log instances.
+     * All logs are created in one transaction, or none if any of them refers
+     * to an unknown logbook, tag, property or entry; the response lists the
+     * created logs with their ids in the order of the payload.
      *
      * @param data Logs data (from payload)
      * @return HTTP Response
@@ -143,6 +159,110 @@ public class LogsResource {
         }
     }
 
+    /**
+     * GET method for retrieving all versions of the log entry <tt>id</tt>,
+     * newest first. Versions are read and written a page at a time.
+     *
+     * @param logId log entry id
+     * @return HTTP Response
+     */
+    @GET
+    @Path("{logId}/history")
+    @Produces("application/xml")
+    public Response historyAsXml(@PathParam("logId") Long logId) {
+        return history(logId, false);
+    }
+
+    @GET
+    @Path("{logId}/history")
+    @Produces("application/json")
+    public Response historyAsJson(@PathParam("logId") Long logId) {
+        return history(logId, true);
+    }
+
+    private Response history(Long logId, boolean json) {
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        try {
+            LogHistory history = new LogHistory(logId);
+            Log first = history.next();
+            Response r;
+            if (first == null) {
+                r = Response.status(Response.Status.NOT_FOUND).build();
+            } else {
+                r = Response.ok(new HistoryOutput(history, first, json)).build();
+            }
+            log.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() +  "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * Writes the versions of a log entry as a <tt>logs</tt> document, one
+     * version at a time.
+     */
+    private static class HistoryOutput implements StreamingOutput {
+
+        private static JAXBContext xmlContext;
+        private static JSONJAXBContext jsonContext;
+        private final LogHistory history;
+        private final Log first;
+        private final boolean json;
+
+        private HistoryOutput(LogHistory history, Log first, boolean json) {
+            this.history = history;
+            this.first = first;
+            this.json = json;
+        }
+
+        private static synchronized JAXBContext getContext(boolean json) throws JAXBException {
+            if (json) {
+                if (jsonContext == null) {
+                    jsonContext = new JSONJAXBContext(JSONConfiguration.mapped().rootUnwrapping(true).build(), Log.class);
+                }
+                return jsonContext;
+            }
+            if (xmlContext == null) {
+                xmlContext = JAXBContext.newInstance(Log.class);
+            }
+            return xmlContext;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            Writer writer = new OutputStreamWriter(output, "UTF-8");
+            try {
+                if (json) {
+                    JSONMarshaller marshaller = ((JSONJAXBContext) getContext(true)).createJSONMarshaller();
+                    writer.write("{\"logs\":{\"log\":[");
+                    for (Log l = first; l != null; l = history.next()) {
+                        if (l != first) {
+                            writer.write(",");
+                        }
+                        marshaller.marshallToJSON(l, writer);
+                    }
+                    writer.write("]}}");
+                } else {
+                    Marshaller marshaller = getContext(false).createMarshaller();
+                    marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+                    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><logs>");
+                    for (Log l = first; l != null; l = history.next()) {
+                        marshaller.marshal(l, writer);
+                    }
+                    writer.write("</logs>");
+                }
+                writer.flush();
+            } catch (JAXBException e) {
+                throw new IOException("Could not write log history", e);
+            } catch (CFException e) {
+                throw new IOException("Could not read log history", e);
+            }
+        }
+    }
+
     /**
      * PUT method for editing a log instance identified by the payload.
      * The <b>complete</b> set of logbooks/tags for the log must be supplied,
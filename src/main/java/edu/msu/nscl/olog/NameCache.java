@@ -0,0 +1,125 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.Response;
+
+/**
+ * Ids of the logbooks, tags, properties and attributes by name, loaded at
+ * startup and kept up to date by the managers' create methods.
+ *
+ * Removing one of them only marks it inactive, so a cached id stays valid
+ * for the lifetime of the service. Entities are still read by id through
+ * JPA, so their state is current.
+ */
+public class NameCache {
+
+    private static final Map<Class<?>, ConcurrentMap<String, Long>> ids = new HashMap<Class<?>, ConcurrentMap<String, Long>>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static {
+        ids.put(Logbook.class, new ConcurrentHashMap<String, Long>());
+        ids.put(Tag.class, new ConcurrentHashMap<String, Long>());
+        ids.put(Property.class, new ConcurrentHashMap<String, Long>());
+        ids.put(Attribute.class, new ConcurrentHashMap<String, Long>());
+    }
+
+    private NameCache() {
+    }
+
+    /**
+     * Loads the ids of all logbooks, tags, properties and attributes.
+     *
+     * @throws CFException wrapping an SQLException
+     */
+    public static void load() throws CFException {
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        try {
+            load(Logbook.class, em.createQuery("SELECT l.id, l.name FROM Logbook l", Object[].class).getResultList());
+            load(Tag.class, em.createQuery("SELECT t.id, t.name FROM Tag t", Object[].class).getResultList());
+            load(Property.class, em.createQuery("SELECT p.id, p.name FROM Property p", Object[].class).getResultList());
+            List<Object[]> rows = em.createQuery("SELECT a.id, p.name, a.name FROM Attribute a JOIN a.property p", Object[].class).getResultList();
+            for (Object[] row : rows) {
+                put(Attribute.class, attributeKey((String) row[1], (String) row[2]), (Long) row[0]);
+            }
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void load(Class<?> type, List<Object[]> rows) {
+        for (Object[] row : rows) {
+            put(type, (String) row[1], (Long) row[0]);
+        }
+    }
+
+    /**
+     * Reads an entity by its cached id.
+     *
+     * @param type Logbook, Tag, Property or Attribute
+     * @param name name, or {@link #attributeKey} for attributes
+     * @return entity, or null if the name is not cached
+     */
+    public static <T> T find(Class<T> type, String name) {
+        Long id = ids.get(type).get(name);
+        if (id == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        EntityManager em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        try {
+            T result = em.find(type, id);
+            if (result == null) {
+                ids.get(type).remove(name, id);
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return result;
+        } finally {
+            em.close();
+        }
+    }
+
+    public static void put(Class<?> type, String name, Long id) {
+        if (name != null && id != null) {
+            ids.get(type).put(name, id);
+        }
+    }
+
+    /**
+     * @return key of an attribute, unique across properties
+     */
+    public static String attributeKey(String propertyName, String attributeName) {
+        return propertyName + '\u0000' + attributeName;
+    }
+
+    public static int size() {
+        int size = 0;
+        for (Map<String, Long> names : ids.values()) {
+            size += names.size();
+        }
+        return size;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+}
@@ -35,7 +35,12 @@ public class OlogContextListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
+        ThumbnailManager.stop();
+        AttachmentManager.stopSearchHitsCleanup();
+        AttachmentStores.close();
+        LogSearchIndex.close();
         JPAUtil.getEntityManagerFactory().close();
+        JCRUtil.close();
         ((RepositoryImpl) repo.getRepository()).shutdown();
         System.out.println("Olog JCR and JPA Sessions have been removed");
 
@@ -65,6 +70,20 @@ public class OlogContextListener implements ServletContextListener {
 
             repo = new JCRUtil();
             System.out.println("Olog JCR has been initialized: ");
+            if (context != null) {
+                AttachmentStores.open(context.getInitParameter("olog.attachments.store"),
+                        context.getInitParameter("olog.attachments.directory"));
+            } else {
+                AttachmentStores.open(null, null);
+            }
+            System.out.println("Olog attachment store: " + AttachmentStores.getName());
+
+            NameCache.load();
+            AttachmentManager.clearSearchHits();
+            ThumbnailManager.start();
+            AttachmentMetadata.open();
+            LogSearchIndex.open(context != null ? context.getInitParameter("olog.index.directory") : null);
+            System.out.println("Olog search index has been opened: ");
         } catch (CFException ex) {
             Logger.getLogger(OlogContextListener.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -5,7 +5,6 @@
  */
 package edu.msu.nscl.olog;
 
-import com.sun.jersey.core.util.MultivaluedMapImpl;
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -102,7 +101,7 @@ public class OlogImpl {
      * @return Logs container with all found logs and their logbooks
      * @throws CFException wrapping an SQLException
      */
-    public Logs findLogsByMultiMatch(MultivaluedMap<String, String> matches) throws CFException, RepositoryException, UnsupportedEncodingException, NoSuchAlgorithmException {
+    public Logs findLogsByMultiMatch(MultivaluedMap<String, String> matches) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
         //return FindLogsQuery.findLogsByMultiMatch(matches);
         return LogManager.findLog(matches);
     }
@@ -166,20 +165,10 @@ public class OlogImpl {
      */
     public Logbook createOrReplaceLogbook(String logbookName, Logbook data) throws CFException {
         Logbook logbook = LogbookManager.create(logbookName, data.getOwner());
-        List<Log> logsData = new ArrayList<Log>();
-        for (Log log : data.getLogs()) {
-            logsData.add(LogManager.findLog(log.getId()));
-            if (log == null) {
-                throw new CFException(Response.Status.BAD_REQUEST,
-                        "Log entry " + log.getId() + " does not exists.");
-            }
-        }
-        for (Log log : logsData) {
-            log.addLogbook(logbook);
-            LogManager.create(log);
+        if (data.getLogs().size() > 0) {
+            changeMembership(logbook.getId(), data.getLogs(), LogMembershipManager.Operation.ADD, true);
         }
         return logbook;
-
     }
 
     /**
@@ -260,6 +249,46 @@ public class OlogImpl {
         LogManager.create(log);
     }
 
+    /**
+     * Adds the logbook identified by <tt>logbookName</tt> to all logs in
+     * <tt>data</tt>, in one transaction.
+     *
+     * @param logbookName logbook to add
+     * @param data logs (entry ids) to add the logbook to
+     * @param versioned true to create a new version of each changed log
+     * @return the logbook
+     * @throws CFException on unknown logbook or logs, or wrapping an
+     * SQLException
+     */
+    public Logbook addLogbookToLogs(String logbookName, Logs data, boolean versioned) throws CFException {
+        Logbook logbook = LogbookManager.findLogbook(logbookName);
+        if (logbook == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Logbook " + logbookName + " does not exists.");
+        }
+        changeMembership(logbook.getId(), data, LogMembershipManager.Operation.ADD, versioned);
+        return logbook;
+    }
+
+    /**
+     * Removes the logbook identified by <tt>logbookName</tt> from all logs in
+     * <tt>data</tt>, in one transaction.
+     *
+     * @param logbookName logbook to remove
+     * @param data logs (entry ids) to remove the logbook from
+     * @param versioned true to create a new version of each changed log
+     * @throws CFException on unknown logbook or logs, when a log would be
+     * left without logbook, or wrapping an SQLException
+     */
+    public void removeLogbookFromLogs(String logbookName, Logs data, boolean versioned) throws CFException {
+        Logbook logbook = LogbookManager.findLogbook(logbookName);
+        if (logbook == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Logbook " + logbookName + " does not exists.");
+        }
+        changeMembership(logbook.getId(), data, LogMembershipManager.Operation.REMOVE, versioned);
+    }
+
     /**
      * List all tags in the database.
      *
@@ -291,18 +320,7 @@ public class OlogImpl {
     public Tag updateTag(String tagName, Tag data) throws CFException {
         Tag tag = TagManager.create(tagName);
         if (data.getLogs().size() > 0) {
-            List<Log> logsData = new ArrayList<Log>();
-            for (Log log : data.getLogs()) {
-                logsData.add(LogManager.findLog(log.getId()));
-                if (log == null) {
-                    throw new CFException(Response.Status.BAD_REQUEST,
-                            "Log entry " + log.getId() + " does not exists.");
-                }
-            }
-            for (Log log : logsData) {
-                log.addTag(tag);
-                LogManager.create(log);
-            }
+            changeMembership(tag.getId(), data.getLogs(), LogMembershipManager.Operation.ADD, true);
         }
         return tag;
     }
@@ -310,36 +328,32 @@ public class OlogImpl {
     /**
      * Adds the tag identified by <tt>tag</tt> <b>exclusively</b> to the logs
      * specified in the Tag payload <tt>data</tt>, creating it if necessary.
-     *
-     * @TODO Right now, this is only a create tag; not create/replace. To
-     * Delete, and recreate log key ids every time is too expensive
+     * Each retagged entry gets a new version.
      *
      * @param tag tag to add
      * @param data Tag container with all logs to add tag to
      * @throws CFException on ownership mismatch, or wrapping an SQLException
      */
     public Tag createOrReplaceTag(String tagName, Tag data) throws CFException {
+        return createOrReplaceTag(tagName, data, true);
+    }
+
+    /**
+     * Adds the tag identified by <tt>tag</tt> <b>exclusively</b> to the logs
+     * specified in the Tag payload <tt>data</tt>, creating it if necessary.
+     * Only the entries whose tagging changes are touched, in one transaction.
+     *
+     * @param tag tag to add
+     * @param data Tag container with all logs to add tag to
+     * @param versioned true to create a new version of each retagged entry,
+     * false to retag the current versions in place
+     * @throws CFException on ownership mismatch, unknown entries, or wrapping
+     * an SQLException
+     */
+    public Tag createOrReplaceTag(String tagName, Tag data, boolean versioned) throws CFException {
         Tag tag = TagManager.create(tagName);
         if (data.getLogs().size() > 0) {
-            MultivaluedMap<String, String> map = new MultivaluedMapImpl();
-            map.add("tag", tagName);
-            List<Log> logs = LogManager.findLog(map);
-            List<Log> logsData = new ArrayList<Log>();
-            for (Log log : data.getLogs()) {
-                logsData.add(LogManager.findLog(log.getId()));
-                if (log == null) {
-                    throw new CFException(Response.Status.BAD_REQUEST,
-                            "Log entry " + log.getId() + " does not exists.");
-                }
-            }
-            for (Log log : logs) {
-                log.removeTag(tag);
-                LogManager.create(log);
-            }
-            for (Log log : logsData) {
-                log.addTag(tag);
-                LogManager.create(log);
-            }
+            changeMembership(tag.getId(), data.getLogs(), LogMembershipManager.Operation.REPLACE, versioned);
         }
         return tag;
     }
@@ -418,6 +432,74 @@ public class OlogImpl {
         LogManager.create(log);
     }
 
+    /**
+     * Adds the tag identified by <tt>tagName</tt> to all logs in
+     * <tt>data</tt>, in one transaction.
+     *
+     * @param tagName tag to add
+     * @param data logs (entry ids) to add the tag to
+     * @param versioned true to create a new version of each changed log
+     * @return the tag
+     * @throws CFException on unknown tag or logs, or wrapping an SQLException
+     */
+    public Tag addTagToLogs(String tagName, Logs data, boolean versioned) throws CFException {
+        Tag tag = TagManager.findTag(tagName);
+        if (tag == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Tag " + tagName + " does not exists.");
+        }
+        changeMembership(tag.getId(), data, LogMembershipManager.Operation.ADD, versioned);
+        return tag;
+    }
+
+    /**
+     * Removes the tag identified by <tt>tagName</tt> from all logs in
+     * <tt>data</tt>, in one transaction.
+     *
+     * @param tagName tag to remove
+     * @param data logs (entry ids) to remove the tag from
+     * @param versioned true to create a new version of each changed log
+     * @throws CFException on unknown tag or logs, or wrapping an SQLException
+     */
+    public void removeTagFromLogs(String tagName, Logs data, boolean versioned) throws CFException {
+        Tag tag = TagManager.findTag(tagName);
+        if (tag == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Tag " + tagName + " does not exists.");
+        }
+        changeMembership(tag.getId(), data, LogMembershipManager.Operation.REMOVE, versioned);
+    }
+
+    private int changeMembership(Long logbookId, List<Log> logs, LogMembershipManager.Operation operation, boolean versioned) throws CFException {
+        return LogMembershipManager.apply(logbookId, entryIds(logs), operation, versioned);
+    }
+
+    /**
+     * Entry ids of a payload of logs. Logs unmarshalled through
+     * {@link XmlLogAdapter} carry the entry id as their id, those of a bare
+     * <tt>logs</tt> payload as their entry id.
+     *
+     * @param logs payload logs
+     * @return entry ids
+     * @throws CFException if a log has no id
+     */
+    static List<Long> entryIds(List<Log> logs) throws CFException {
+        if (logs == null) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "No logs given.");
+        }
+        List<Long> entryIds = new ArrayList<Long>(logs.size());
+        for (Log log : logs) {
+            Long id = log.getId() != null ? log.getId() : log.getEntryId();
+            if (id == null) {
+                throw new CFException(Response.Status.BAD_REQUEST,
+                        "Log without id in the payload.");
+            }
+            entryIds.add(id);
+        }
+        return entryIds;
+    }
+
     /**
      * Return a list of all properties
      *
@@ -549,32 +631,21 @@ public class OlogImpl {
     }
 
     /**
-     * Create logs specified in <tt>data</tt>.
+     * Create logs specified in <tt>data</tt> in a single transaction. Either
+     * all logs are created or none is.
      *
      * @param logs Logs data
-     * @throws CFException on ownership mismatch, or wrapping an SQLException
+     * @return the created logs, in the order of <tt>logs</tt>, one per item
+     * @throws CFException on ownership mismatch, unknown names or entries,
+     * or wrapping an SQLException
      */
     public Logs createOrReplaceLogs(Logs logs) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
-        ListIterator<Log> iterator = logs.listIterator();
-        while (iterator.hasNext()) {
-            Log log = iterator.next();
-            iterator.set(createOneLog(log));
-        }
-        return (Logs) logs;
-    }
-
-    /**
-     * Create a new log using the logbook set in <tt>data</tt>.
-     *
-     * @param data Log data
-     * @throws CFException on ownership or name mismatch, or wrapping an
-     * SQLException
-     */
-    private Log createOneLog(Log data) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
         UserManager um = UserManager.getInstance();
-        data.setSource(um.getHostAddress());
-        data.setOwner(um.getUserName());
-        return LogManager.create(data);
+        for (Log log : logs) {
+            log.setSource(um.getHostAddress());
+            log.setOwner(um.getUserName());
+        }
+        return new Logs(LogManager.createAll(logs));
     }
 
     /**
@@ -892,8 +963,8 @@ public class OlogImpl {
         return AttachmentManager.findAll(logId);
     }
 
-    Attachment getAttachment(String filePath, String fileName) throws CFException {
-        return AttachmentManager.findAttachment(filePath, fileName);
+    Attachment getAttachment(Long logId, String fileName, boolean thumbnail) throws CFException {
+        return AttachmentManager.findAttachment(logId, fileName, thumbnail);
     }
 
     XmlAttachment createAttachment(Attachment attachment, Long logId) throws CFException {
@@ -64,6 +64,10 @@ public class PropertyManager {
      * @throws CFException wrapping an SQLException
      */
     public static Property findProperty(String propertyName) throws CFException {
+        Property cached = NameCache.find(Property.class, propertyName);
+        if (cached != null) {
+            return cached;
+        }
         em = JPAUtil.getEntityManagerFactory().createEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Property> cq = cb.createQuery(Property.class);
@@ -85,6 +89,9 @@ public class PropertyManager {
                 }
             }
 
+            if (result != null) {
+                NameCache.put(Property.class, propertyName, result.getId());
+            }
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -114,6 +121,7 @@ public class PropertyManager {
                 newProperty.setName(propertyName);
                 newProperty.setState(State.Active);
                 JPAUtil.save(newProperty);
+                NameCache.put(Property.class, propertyName, newProperty.getId());
                 return newProperty;
             }
         } catch (Exception e) {
@@ -152,6 +160,7 @@ public class PropertyManager {
                 newProperty.setName(property.getName());
                 newProperty.setState(State.Active);
                 JPAUtil.save(newProperty);
+                NameCache.put(Property.class, property.getName(), newProperty.getId());
                 return newProperty;
             }
         } catch (Exception e) {
@@ -67,6 +67,10 @@ public class TagManager {
      * @throws CFException wrapping an SQLException
      */
     public static Tag findTag(String name) throws CFException {
+        Tag cached = NameCache.find(Tag.class, name);
+        if (cached != null) {
+            return cached;
+        }
         em = JPAUtil.getEntityManagerFactory().createEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Tag> cq = cb.createQuery(Tag.class);
@@ -88,6 +92,9 @@ public class TagManager {
                 }
             }
             
+            if (result != null) {
+                NameCache.put(Tag.class, name, result.getId());
+            }
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -116,6 +123,7 @@ public class TagManager {
                 xmlTag.setName(name);
                 xmlTag.setState(State.Active);
                 JPAUtil.save(xmlTag);
+                NameCache.put(Tag.class, name, xmlTag.getId());
                 return xmlTag;
             }    
         } catch (Exception e) {
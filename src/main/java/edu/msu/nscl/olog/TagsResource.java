@@ -9,8 +9,10 @@ import java.io.IOException;
 import java.util.logging.Logger;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.POST;
@@ -128,15 +130,19 @@ public class TagsResource {
      * path parameter <tt>name</tt> to all logs identified in the payload
      * structure <tt>data</tt>.
      * Setting the owner attribute in the XML root element is mandatory.
+     * With <tt>versions=false</tt> the current versions of the logs are
+     * retagged in place instead of creating new versions.
      *
      * @param tag URI path parameter: tag name
+     * @param versions query parameter: create new versions of retagged logs
      * @param data Tag structure containing the list of logs to be tagged
      * @return HTTP Response
      */
     @PUT
     @Path("{tagName}")
     @Consumes({"application/xml", "application/json"})
-    public Response create(@PathParam("tagName") String tag, Tag data) {
+    public Response create(@PathParam("tagName") String tag,
+            @QueryParam("versions") @DefaultValue("true") boolean versions, Tag data) {
         OlogImpl cm = OlogImpl.getInstance();
         UserManager um = UserManager.getInstance();
         um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
@@ -144,7 +150,7 @@ public class TagsResource {
         try {
             cm.checkValidNameAndOwner(data);
             cm.checkNameMatchesPayload(tag, data);
-            result = cm.createOrReplaceTag(tag, data);
+            result = cm.createOrReplaceTag(tag, data, versions);
             Response r = Response.ok(result).build();
             audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|PUT|OK|" + r.getStatus()
                     + "|data=" + Tag.toLogger(data));
@@ -212,6 +218,71 @@ public class TagsResource {
         }
     }
 
+    /**
+     * PUT method for adding the tag identified by <tt>tag</tt> to all logs
+     * in the payload, in one transaction.
+     * With <tt>versions=false</tt> the current versions of the logs are changed
+     * in place instead of creating new versions.
+     *
+     * @param tag URI path parameter: tag name
+     * @param versions query parameter: create new versions of changed logs
+     * @param data logs to add <tt>tag</tt> to
+     * @return HTTP Response
+     */
+    @PUT
+    @Path("{tagName}/logs")
+    @Consumes({"application/xml", "application/json"})
+    public Response addMultiple(@PathParam("tagName") String tag,
+            @QueryParam("versions") @DefaultValue("true") boolean versions, Logs data) {
+        OlogImpl cm = OlogImpl.getInstance();
+        UserManager um = UserManager.getInstance();
+        um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
+        Tag result = null;
+        try {
+            result = cm.addTagToLogs(tag, data, versions);
+            Response r = Response.ok(result).build();
+            audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|PUT|OK|" + r.getStatus()
+                    + "|data=" + Logs.toLogger(data));
+            return r;
+        } catch (CFException e) {
+            log.warning(um.getUserName() + "|" + uriInfo.getPath() + "|PUT|ERROR|" + e.getResponseStatusCode()
+                    + "|data=" + Logs.toLogger(data) + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * DELETE method for removing the tag identified by <tt>tag</tt> from all
+     * logs in the payload, in one transaction.
+     * With <tt>versions=false</tt> the current versions of the logs are changed
+     * in place instead of creating new versions.
+     *
+     * @param tag URI path parameter: tag name
+     * @param versions query parameter: create new versions of changed logs
+     * @param data logs to remove <tt>tag</tt> from
+     * @return HTTP Response
+     */
+    @DELETE
+    @Path("{tagName}/logs")
+    @Consumes({"application/xml", "application/json"})
+    public Response removeMultiple(@PathParam("tagName") String tag,
+            @QueryParam("versions") @DefaultValue("true") boolean versions, Logs data) {
+        OlogImpl cm = OlogImpl.getInstance();
+        UserManager um = UserManager.getInstance();
+        um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
+        try {
+            cm.removeTagFromLogs(tag, data, versions);
+            Response r = Response.ok().build();
+            audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|DELETE|OK|" + r.getStatus()
+                    + "|data=" + Logs.toLogger(data));
+            return r;
+        } catch (CFException e) {
+            log.warning(um.getUserName() + "|" + uriInfo.getPath() + "|DELETE|ERROR|" + e.getResponseStatusCode()
+                    + "|data=" + Logs.toLogger(data) + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
     /**
      * PUT method for adding the tag identified by <tt>tag</tt> to the single log
      * <tt>id</tt> (both path parameters).
@@ -0,0 +1,125 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import net.coobird.thumbnailator.Thumbnails;
+
+/**
+ * Thumbnail pipeline bounded by the size of the thumbnail.
+ *
+ * The image type is taken from the content, not the file name, and the
+ * dimensions from the image header. The image is then decoded with source
+ * subsampling, so only about one pixel in <tt>factor x factor</tt> is ever
+ * held in memory, and the subsampled raster is scaled to the final size.
+ */
+public class ThumbnailImage {
+
+    /**
+     * Number of bytes needed to recognize the supported image types.
+     */
+    public static final int HEADER_SIZE = 8;
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] JPEG = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+    private static final byte[] GIF = {'G', 'I', 'F', '8'};
+    private static final byte[] BMP = {'B', 'M'};
+
+    private ThumbnailImage() {
+    }
+
+    /**
+     * Recognizes an image from its first bytes, leaving the stream at its
+     * start.
+     *
+     * @param in stream supporting mark
+     * @return MIME type, null if not a supported image
+     */
+    public static String detectType(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        in.mark(HEADER_SIZE);
+        int length = 0;
+        try {
+            while (length < HEADER_SIZE) {
+                int n = in.read(header, length, HEADER_SIZE - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            in.reset();
+        }
+        if (startsWith(header, length, PNG)) {
+            return "image/png";
+        } else if (startsWith(header, length, JPEG)) {
+            return "image/jpeg";
+        } else if (startsWith(header, length, GIF)) {
+            return "image/gif";
+        } else if (startsWith(header, length, BMP)) {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the thumbnail of an image, fitting in a square of the given
+     * size. JPEG images give JPEG thumbnails, others PNG thumbnails.
+     *
+     * @param in image
+     * @param size thumbnail width and height
+     * @param out thumbnail
+     * @return MIME type of the thumbnail
+     * @throws IOException if the content is not a readable image
+     */
+    public static String write(InputStream in, int size, OutputStream out) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(in);
+        if (iis == null) {
+            throw new IOException("Image stream could not be opened");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Not a supported image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int factor = Math.max(1, Math.max(width, height) / size);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                String format = "jpeg".equalsIgnoreCase(reader.getFormatName()) ? "jpeg" : "png";
+                Thumbnails.of(image).size(size, size).outputFormat(format).toOutputStream(out);
+                return "image/" + format;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+}
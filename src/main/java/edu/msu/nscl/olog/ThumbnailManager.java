@@ -0,0 +1,393 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.core.Response;
+
+/**
+ * Generates attachment thumbnails in the background.
+ *
+ * Uploads only record a job in the thumbnail_jobs table, which is the queue
+ * of the pool: a fixed number of workers claim pending jobs in id order, so
+ * the work in progress is bounded and jobs left over by a restart are picked
+ * up again. A job row is deleted once its thumbnail is stored, and kept as
+ * failed when the image cannot be decoded.
+ */
+public class ThumbnailManager {
+
+    public static final String PENDING = "pending";
+    public static final String READY = "ready";
+    public static final String FAILED = "failed";
+    private static final String STATE_PENDING = "Pending";
+    private static final String STATE_RUNNING = "Running";
+    private static final String STATE_FAILED = "Failed";
+    private static final int POOL_SIZE = 2;
+    /**
+     * Time an idle worker waits before looking for jobs again, in
+     * milliseconds, in case a job was queued without notification.
+     */
+    private static final long POLL_INTERVAL = 30000L;
+    private static final int THUMBNAIL_SIZE = 80;
+    private static final Logger log = Logger.getLogger(ThumbnailManager.class.getName());
+    private static final Object signal = new Object();
+    private static final List<Thread> workers = new ArrayList<Thread>();
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static volatile boolean started = false;
+
+    private ThumbnailManager() {
+    }
+
+    /**
+     * Requeues the jobs interrupted by a shutdown and starts the workers.
+     */
+    public static void start() {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("UPDATE thumbnail_jobs SET state = ?, claimed_by = NULL WHERE state = ?");
+            ps.setString(1, STATE_PENDING);
+            ps.setString(2, STATE_RUNNING);
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not requeue thumbnail jobs", e);
+        } finally {
+            close(con);
+        }
+        started = true;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            Thread worker = new Thread(new Worker(), "olog-thumbnail-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers; the jobs they were running are requeued by the
+     * next start.
+     */
+    public static void stop() {
+        started = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.clear();
+    }
+
+    /**
+     * Queues the thumbnail of a stored attachment, replacing an earlier job
+     * for the same file.
+     *
+     * @param entryId log entry
+     * @param fileName attachment
+     */
+    public static void submit(Long entryId, String fileName) throws CFException {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("INSERT INTO thumbnail_jobs (entry_id, file_name, state, created)"
+                    + " VALUES (?, ?, ?, NOW()) ON DUPLICATE KEY UPDATE state = VALUES(state), claimed_by = NULL, message = NULL");
+            ps.setLong(1, entryId);
+            ps.setString(2, fileName);
+            ps.setString(3, STATE_PENDING);
+            ps.executeUpdate();
+            ps.close();
+        } catch (SQLException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + entryId + " could not queue thumbnail. " + e);
+        } finally {
+            close(con);
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Drops the job of a removed attachment.
+     */
+    public static void cancel(Long entryId, String fileName) {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("DELETE FROM thumbnail_jobs WHERE entry_id = ? AND file_name = ?");
+            ps.setLong(1, entryId);
+            ps.setString(2, fileName);
+            ps.executeUpdate();
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not cancel thumbnail job of " + entryId + "/" + fileName, e);
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * Thumbnail status of the attachments without a stored thumbnail.
+     * Attachments that are not images have no job and no status.
+     *
+     * @param entryIds log entries
+     * @return {@link #PENDING} or {@link #FAILED} keyed by entry id and file
+     * name, for the files having a job
+     */
+    public static Map<Long, Map<String, String>> findStatus(Collection<Long> entryIds) {
+        Map<Long, Map<String, String>> result = new HashMap<Long, Map<String, String>>();
+        if (entryIds.isEmpty()) {
+            return result;
+        }
+        StringBuilder sql = new StringBuilder("SELECT entry_id, file_name, state FROM thumbnail_jobs WHERE entry_id IN (");
+        for (int i = 0; i < entryIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement(sql.toString());
+            int i = 1;
+            for (Long id : entryIds) {
+                ps.setLong(i++, id);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Long entryId = rs.getLong(1);
+                Map<String, String> files = result.get(entryId);
+                if (files == null) {
+                    files = new HashMap<String, String>();
+                    result.put(entryId, files);
+                }
+                files.put(rs.getString(2), STATE_FAILED.equals(rs.getString(3)) ? FAILED : PENDING);
+            }
+            ps.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not read thumbnail jobs", e);
+        } finally {
+            close(con);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of jobs waiting for a worker
+     */
+    public static long getPending() {
+        Connection con = null;
+        try {
+            con = DbConnection.getInstance().getDataSource().getConnection();
+            PreparedStatement ps = con.prepareStatement("SELECT COUNT(*) FROM thumbnail_jobs WHERE state = ?");
+            ps.setString(1, STATE_PENDING);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            long pending = rs.getLong(1);
+            ps.close();
+            return pending;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            close(con);
+        }
+    }
+
+    public static int getRunning() {
+        return running.get();
+    }
+
+    public static long getCompleted() {
+        return completed.get();
+    }
+
+    public static long getFailed() {
+        return failed.get();
+    }
+
+    private static class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            String name = Thread.currentThread().getName();
+            try {
+                while (started) {
+                    Object[] job = null;
+                    try {
+                        job = claim(name);
+                        if (job != null) {
+                            running.incrementAndGet();
+                            try {
+                                generate((Long) job[0], (Long) job[1], (String) job[2]);
+                            } finally {
+                                running.decrementAndGet();
+                            }
+                        }
+                    } catch (SQLException e) {
+                        log.log(Level.WARNING, "Thumbnail worker " + name + " could not update jobs", e);
+                        job = null;
+                    } catch (CFException e) {
+                        log.log(Level.WARNING, "Thumbnail worker " + name + " could not update jobs", e);
+                        job = null;
+                    } catch (Throwable e) {
+                        // keep the worker alive whatever went wrong
+                        log.log(Level.SEVERE, "Thumbnail worker " + name + " failed", e);
+                        job = null;
+                    }
+                    if (job == null) {
+                        synchronized (signal) {
+                            signal.wait(POLL_INTERVAL);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        /**
+         * Writes the thumbnail of one attachment and completes its job.
+         */
+        private void generate(Long jobId, Long entryId, String fileName) throws SQLException, CFException {
+            String message = null;
+            try {
+                AttachmentStore store = AttachmentStores.get();
+                Attachment source = store.find(entryId, fileName, false);
+                if (source != null) {
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    String mimeType;
+                    AttachmentContent content = source.getStoredContent();
+                    try {
+                        InputStream in = content.open();
+                        try {
+                            mimeType = ThumbnailImage.write(in, THUMBNAIL_SIZE, outputStream);
+                        } finally {
+                            in.close();
+                        }
+                    } finally {
+                        content.dispose();
+                    }
+                    store.remove(entryId, fileName, true);
+                    store.store(entryId, fileName, mimeType, new ByteArrayInputStream(outputStream.toByteArray()), true);
+                    AttachmentMetadata.setThumbnail(entryId, fileName, READY);
+                }
+                // else the attachment was removed in the meantime
+            } catch (IOException e) {
+                message = e.toString();
+            } catch (CFException e) {
+                message = e.toString();
+            } catch (Throwable e) {
+                // an OutOfMemoryError on a huge image fails only this job
+                message = e.toString();
+            }
+            if (message == null) {
+                complete(jobId);
+                completed.incrementAndGet();
+            } else {
+                log.warning("Thumbnail of " + entryId + "/" + fileName + " failed: " + message);
+                fail(jobId, message);
+                AttachmentMetadata.setThumbnail(entryId, fileName, FAILED);
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Marks the oldest pending job as running by this worker.
+     *
+     * @return job id, entry id and file name, or null if none is pending
+     */
+    private static Object[] claim(String worker) throws SQLException, CFException {
+        Connection con = DbConnection.getInstance().getDataSource().getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("UPDATE thumbnail_jobs SET state = ?, claimed_by = ?"
+                    + " WHERE state = ? ORDER BY id LIMIT 1");
+            ps.setString(1, STATE_RUNNING);
+            ps.setString(2, worker);
+            ps.setString(3, STATE_PENDING);
+            int claimed = ps.executeUpdate();
+            ps.close();
+            if (claimed == 0) {
+                return null;
+            }
+            ps = con.prepareStatement("SELECT id, entry_id, file_name FROM thumbnail_jobs WHERE state = ? AND claimed_by = ?");
+            ps.setString(1, STATE_RUNNING);
+            ps.setString(2, worker);
+            ResultSet rs = ps.executeQuery();
+            Object[] job = null;
+            if (rs.next()) {
+                job = new Object[]{rs.getLong(1), rs.getLong(2), rs.getString(3)};
+            }
+            ps.close();
+            return job;
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * Deletes a finished job, unless it was queued again meanwhile.
+     */
+    private static void complete(Long jobId) throws SQLException, CFException {
+        Connection con = DbConnection.getInstance().getDataSource().getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("DELETE FROM thumbnail_jobs WHERE id = ? AND state = ?");
+            ps.setLong(1, jobId);
+            ps.setString(2, STATE_RUNNING);
+            ps.executeUpdate();
+            ps.close();
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void fail(Long jobId, String message) throws SQLException, CFException {
+        Connection con = DbConnection.getInstance().getDataSource().getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("UPDATE thumbnail_jobs SET state = ?, claimed_by = NULL, message = ?"
+                    + " WHERE id = ? AND state = ?");
+            ps.setString(1, STATE_FAILED);
+            ps.setString(2, message.length() > 255 ? message.substring(0, 255) : message);
+            ps.setLong(3, jobId);
+            ps.setString(4, STATE_RUNNING);
+            ps.executeUpdate();
+            ps.close();
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void close(Connection con) {
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
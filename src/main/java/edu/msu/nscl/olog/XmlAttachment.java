@@ -28,6 +28,9 @@ public class XmlAttachment {
     @XmlTransient
     protected Boolean thumbnail;
     
+    @XmlTransient
+    protected String thumbnailStatus;
+    
     @XmlTransient
     protected Long fileSize;
 
@@ -98,6 +101,22 @@ public class XmlAttachment {
 	this.thumbnail = thumbnail;
     }
 
+    /**
+     * @return pending, ready or failed for attachments getting a
+     *         thumbnail, null for others
+     */
+    public String getThumbnailStatus() {
+        return thumbnailStatus;
+    }
+
+    /**
+     * @param thumbnailStatus
+     *            the thumbnail status to set
+     */
+    public void setThumbnailStatus(String thumbnailStatus) {
+        this.thumbnailStatus = thumbnailStatus;
+    }
+
     /**
      * Creates a compact string representation for the log.
      *
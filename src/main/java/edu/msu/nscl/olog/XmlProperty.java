@@ -173,6 +173,9 @@ public class XmlProperty {
     @Override
     public int hashCode() {
         int hash = 7;
+        hash = 59 * hash + (this.id != null ? this.id.hashCode() : 0);
+        hash = 59 * hash + this.groupingNum;
+        hash = 59 * hash + (this.name != null ? this.name.hashCode() : 0);
         return hash;
     }
 
@@ -0,0 +1,5 @@
+ALTER TABLE `entries` ADD COLUMN `version` INT(11) UNSIGNED NOT NULL DEFAULT 0,
+ ADD COLUMN `current_log_id` INT(11) UNSIGNED NULL;
+
+UPDATE `entries` e SET e.`version` = (SELECT COUNT(*) FROM `logs` l WHERE l.`entry_id` = e.`id`),
+ e.`current_log_id` = (SELECT MAX(l.`id`) FROM `logs` l WHERE l.`entry_id` = e.`id`);
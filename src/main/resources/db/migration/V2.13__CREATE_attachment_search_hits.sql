@@ -0,0 +1,16 @@
+CREATE TABLE `attachment_search_terms` (
+  `term_key` CHAR(32) NOT NULL,
+  `generation` BIGINT NOT NULL,
+  `hits` INT(11) UNSIGNED NOT NULL,
+  `created` DATETIME NOT NULL,
+  PRIMARY KEY (`term_key`),
+  KEY `attachment_search_terms_generation` (`generation`)
+) ENGINE=InnoDB;
+
+CREATE TABLE `attachment_search_hits` (
+  `term_key` CHAR(32) NOT NULL,
+  `entry_id` INT(11) UNSIGNED NOT NULL,
+  `generation` BIGINT NOT NULL,
+  PRIMARY KEY (`term_key`, `entry_id`),
+  KEY `attachment_search_hits_generation` (`generation`)
+) ENGINE=InnoDB;
@@ -0,0 +1,3 @@
+ALTER TABLE `entries` ADD INDEX `entries_created_id_idx` (`created`, `id`);
+
+ALTER TABLE `logs` ADD INDEX `logs_entry_id_state_idx` (`entry_id`, `state`);
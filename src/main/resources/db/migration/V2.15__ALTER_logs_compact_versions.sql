@@ -0,0 +1,45 @@
+ALTER TABLE `logs` ADD COLUMN `description_unchanged` TINYINT(1) NOT NULL DEFAULT 0,
+ ADD COLUMN `attributes_unchanged` TINYINT(1) NOT NULL DEFAULT 0;
+
+CREATE TABLE `log_successors` (
+  `log_id` int(11) unsigned NOT NULL,
+  `next_id` int(11) unsigned NOT NULL,
+  `same_description` tinyint(1) NOT NULL DEFAULT 0,
+  `same_attributes` tinyint(1) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`log_id`)
+) ENGINE=InnoDB;
+
+INSERT INTO `log_successors` (`log_id`, `next_id`)
+ SELECT o.`id`, MIN(n.`id`) FROM `logs` o JOIN `logs` n ON n.`entry_id` = o.`entry_id` AND n.`id` > o.`id` GROUP BY o.`id`;
+
+UPDATE `log_successors` s JOIN `logs` o ON o.`id` = s.`log_id` JOIN `logs` n ON n.`id` = s.`next_id`
+ SET s.`same_description` = 1 WHERE BINARY o.`description` = BINARY n.`description`;
+
+CREATE TABLE `log_attribute_counts` (
+  `log_id` int(11) unsigned NOT NULL,
+  `attributes` int(11) NOT NULL,
+  PRIMARY KEY (`log_id`)
+) ENGINE=InnoDB;
+
+INSERT INTO `log_attribute_counts` (`log_id`, `attributes`)
+ SELECT `log_id`, COUNT(*) FROM `logs_attributes` GROUP BY `log_id`;
+
+UPDATE `log_successors` s
+ LEFT JOIN `log_attribute_counts` oc ON oc.`log_id` = s.`log_id`
+ LEFT JOIN `log_attribute_counts` nc ON nc.`log_id` = s.`next_id`
+ SET s.`same_attributes` = 1
+ WHERE COALESCE(oc.`attributes`, 0) = COALESCE(nc.`attributes`, 0)
+ AND COALESCE(oc.`attributes`, 0) = (SELECT COUNT(*) FROM `logs_attributes` o JOIN `logs_attributes` n
+   ON n.`attribute_id` = o.`attribute_id` AND n.`grouping_num` = o.`grouping_num` AND BINARY n.`value` = BINARY o.`value`
+   WHERE o.`log_id` = s.`log_id` AND n.`log_id` = s.`next_id`);
+
+UPDATE `logs` l JOIN `log_successors` s ON s.`log_id` = l.`id`
+ SET l.`description` = '', l.`description_unchanged` = 1 WHERE s.`same_description` = 1;
+
+DELETE la FROM `logs_attributes` la JOIN `log_successors` s ON s.`log_id` = la.`log_id` WHERE s.`same_attributes` = 1;
+
+UPDATE `logs` l JOIN `log_successors` s ON s.`log_id` = l.`id`
+ SET l.`attributes_unchanged` = 1 WHERE s.`same_attributes` = 1;
+
+DROP TABLE `log_attribute_counts`;
+DROP TABLE `log_successors`;
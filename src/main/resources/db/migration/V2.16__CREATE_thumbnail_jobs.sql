@@ -0,0 +1,12 @@
+CREATE TABLE `thumbnail_jobs` (
+  `id` INT(11) UNSIGNED NOT NULL AUTO_INCREMENT,
+  `entry_id` INT(11) UNSIGNED NOT NULL,
+  `file_name` VARCHAR(255) NOT NULL,
+  `state` VARCHAR(16) NOT NULL,
+  `claimed_by` VARCHAR(64) NULL,
+  `created` DATETIME NOT NULL,
+  `message` VARCHAR(255) NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `thumbnail_jobs_file` (`entry_id`, `file_name`),
+  KEY `thumbnail_jobs_state` (`state`, `id`)
+) ENGINE=InnoDB;
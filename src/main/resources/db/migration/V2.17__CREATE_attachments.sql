@@ -0,0 +1,21 @@
+CREATE TABLE `attachments` (
+  `id` INT(11) UNSIGNED NOT NULL AUTO_INCREMENT,
+  `entry_id` INT(11) UNSIGNED NOT NULL,
+  `file_name` VARCHAR(255) NOT NULL,
+  `content_type` VARCHAR(255) NOT NULL,
+  `file_size` BIGINT(20) UNSIGNED NOT NULL,
+  `hash` CHAR(64) NULL,
+  `thumbnail` VARCHAR(16) NULL,
+  `created` DATETIME NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `attachments_file` (`entry_id`, `file_name`)
+) ENGINE=InnoDB;
+
+CREATE TABLE `attachment_backfill` (
+  `id` TINYINT(3) UNSIGNED NOT NULL,
+  `last_entry_id` INT(11) UNSIGNED NOT NULL,
+  `complete` TINYINT(1) NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB;
+
+INSERT INTO `attachment_backfill` (`id`, `last_entry_id`, `complete`) VALUES (1, 0, 0);
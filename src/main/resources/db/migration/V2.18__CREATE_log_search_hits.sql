@@ -0,0 +1,5 @@
+CREATE TABLE `log_search_hits` (
+  `search_key` CHAR(32) NOT NULL,
+  `entry_id` INT(11) UNSIGNED NOT NULL,
+  PRIMARY KEY (`search_key`, `entry_id`)
+) ENGINE=InnoDB;
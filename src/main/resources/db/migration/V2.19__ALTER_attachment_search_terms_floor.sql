@@ -0,0 +1 @@
+ALTER TABLE `attachment_search_terms` ADD COLUMN `floor_entry_id` INT(11) UNSIGNED NULL;
@@ -0,0 +1,153 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks Base64DecodingInputStream against DatatypeConverter, and that it
+ * decodes a payload larger than the heap.
+ */
+public class Base64DecodingInputStreamTest {
+
+    private static final long LARGE_PAYLOAD = 384L * 1024 * 1024;
+
+    private static byte[] decode(String encoded) throws IOException {
+        InputStream in = new Base64DecodingInputStream(new ByteArrayInputStream(encoded.getBytes("US-ASCII")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertDecodes(String encoded) throws IOException {
+        assertArrayEquals(DatatypeConverter.parseBase64Binary(encoded), decode(encoded));
+    }
+
+    @Test
+    public void decodesWithoutPadding() throws IOException {
+        assertDecodes("b2xvZyBhdHRhY2htZW50");
+    }
+
+    @Test
+    public void decodesWithOnePaddingCharacter() throws IOException {
+        assertDecodes("b2xvZyA=");
+    }
+
+    @Test
+    public void decodesWithTwoPaddingCharacters() throws IOException {
+        assertDecodes("b2xvZw==");
+    }
+
+    @Test
+    public void skipsLineBreaks() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(17).nextBytes(data);
+        String encoded = DatatypeConverter.printBase64Binary(data);
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += 76) {
+            lines.append(encoded, i, Math.min(encoded.length(), i + 76)).append("\r\n");
+        }
+        assertArrayEquals(data, decode(lines.toString()));
+        assertDecodes(lines.toString());
+    }
+
+    @Test
+    public void decodesEmptyInput() throws IOException {
+        assertEquals(0, decode("").length);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedQuantum() throws IOException {
+        decode("b2xvZ");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidCharacter() throws IOException {
+        decode("b2x*Zw==");
+    }
+
+    /**
+     * Streams a generated payload larger than the heap, which the surefire
+     * configuration limits, and compares checksums.
+     */
+    @Test
+    public void decodesPayloadLargerThanHeap() throws IOException {
+        assertTrue(Runtime.getRuntime().maxMemory() < LARGE_PAYLOAD);
+        EncodingInputStream encoded = new EncodingInputStream(LARGE_PAYLOAD);
+        InputStream in = new Base64DecodingInputStream(encoded);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        long length = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            crc.update(buffer, 0, n);
+            length += n;
+        }
+        assertEquals(LARGE_PAYLOAD, length);
+        assertEquals(encoded.crc.getValue(), crc.getValue());
+    }
+
+    /**
+     * Base64 encoding of generated bytes in 76 character lines, produced
+     * while it is read.
+     */
+    private static class EncodingInputStream extends InputStream {
+
+        private static final int LINE_BYTES = 57;
+        private final Random random = new Random(42);
+        private final CRC32 crc = new CRC32();
+        private long remaining;
+        private byte[] line = new byte[0];
+        private int linePos = 0;
+
+        EncodingInputStream(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (linePos == line.length && !nextLine()) {
+                return -1;
+            }
+            return line[linePos++];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (linePos == line.length && !nextLine()) {
+                return -1;
+            }
+            int n = Math.min(len, line.length - linePos);
+            System.arraycopy(line, linePos, b, off, n);
+            linePos += n;
+            return n;
+        }
+
+        private boolean nextLine() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            byte[] data = new byte[(int) Math.min(LINE_BYTES, remaining)];
+            random.nextBytes(data);
+            crc.update(data);
+            remaining -= data.length;
+            line = (DatatypeConverter.printBase64Binary(data) + "\n").getBytes("US-ASCII");
+            linePos = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the bulk membership endpoints read the entry ids of a bare
+ * <tt>logs</tt> payload, which is not unmarshalled through XmlLogAdapter.
+ */
+public class LogMembershipTest {
+
+    private static final String LOGBOOK = "membership-test";
+    private static final String OTHER = "membership-test-other";
+
+    private static Logs unmarshal(String xml) throws JAXBException {
+        return (Logs) JAXBContext.newInstance(Logs.class).createUnmarshaller()
+                .unmarshal(new StringReader(xml));
+    }
+
+    @Test
+    public void entryIdsOfBareLogs() throws Exception {
+        Logs data = unmarshal("<logs><log id=\"5\"/><log id=\"7\"/></logs>");
+        assertNull(data.get(0).getId());
+        assertEquals(Arrays.asList(5L, 7L), OlogImpl.entryIds(data));
+    }
+
+    @Test
+    public void logWithoutIdIsRejected() throws Exception {
+        Logs data = unmarshal("<logs><log id=\"5\"/><log/></logs>");
+        try {
+            OlogImpl.entryIds(data);
+            fail();
+        } catch (CFException e) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponseStatusCode());
+        }
+    }
+
+    @Test
+    public void addLogbookToBareLogs() throws Exception {
+        Assume.assumeTrue(TestDatabase.isConfigured());
+        TestDatabase.open();
+        LogbookManager.create(LOGBOOK, "test");
+        LogbookManager.create(OTHER, "test");
+        Log log = new Log();
+        log.setOwner("test");
+        log.setSource("127.0.0.1");
+        log.setDescription("Membership");
+        log.setLevel(Level.Info);
+        log.addLogbook(new Logbook(LOGBOOK, "test"));
+        Long entryId = LogManager.create(log).getEntryId();
+
+        Logs data = unmarshal("<logs><log id=\"" + entryId + "\"/></logs>");
+        OlogImpl.getInstance().addLogbookToLogs(OTHER, data, false);
+        assertEquals(1, countMembers(OTHER));
+        OlogImpl.getInstance().removeLogbookFromLogs(OTHER, data, false);
+        assertEquals(0, countMembers(OTHER));
+    }
+
+    private static int countMembers(String logbook) throws SQLException {
+        Connection con = TestDatabase.open().getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("SELECT COUNT(*) FROM logs_logbooks ll"
+                    + " JOIN logbooks b ON b.id = ll.logbook_id WHERE b.name = ?");
+            try {
+                ps.setString(1, logbook);
+                ResultSet rs = ps.executeQuery();
+                rs.next();
+                return rs.getInt(1);
+            } finally {
+                ps.close();
+            }
+        } finally {
+            con.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a date range search reads the entry id range from the
+ * entries created index instead of scanning the entries table.
+ */
+public class LogQueryPlanTest {
+
+    private static final int ENTRIES = 5000;
+
+    @BeforeClass
+    public static void createEntries() throws SQLException {
+        Assume.assumeTrue(TestDatabase.isConfigured());
+        Connection con = TestDatabase.open().getConnection();
+        try {
+            Statement st = con.createStatement();
+            try {
+                st.executeUpdate("DELETE FROM entries");
+                PreparedStatement insert = con.prepareStatement(
+                        "INSERT INTO entries (created, version) VALUES (NOW() - INTERVAL ? HOUR, 1)");
+                try {
+                    for (int i = 0; i < ENTRIES; i++) {
+                        insert.setInt(1, ENTRIES - i);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                } finally {
+                    insert.close();
+                }
+                st.execute("ANALYZE TABLE entries");
+            } finally {
+                st.close();
+            }
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * The SQL of LogManager.findEntryIdRange for a one day range.
+     */
+    @Test
+    public void entryIdRangeUsesCreatedIndex() throws SQLException {
+        long now = System.currentTimeMillis();
+        Connection con = TestDatabase.open().getConnection();
+        try {
+            PreparedStatement explain = con.prepareStatement("EXPLAIN " + LogManager.ENTRY_ID_RANGE);
+            explain.setTimestamp(1, new Timestamp(now - 48 * 3600000L));
+            explain.setTimestamp(2, new Timestamp(now - 24 * 3600000L));
+            try {
+                ResultSet rs = explain.executeQuery();
+                assertTrue(rs.next());
+                assertEquals("entries_created_id_idx", rs.getString("key"));
+                assertEquals("range", rs.getString("type"));
+                assertFalse(rs.next());
+            } finally {
+                explain.close();
+            }
+        } finally {
+            con.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that adding a log to a logbook does not load the other logs of the
+ * logbook through the inverse <tt>Logbook.logs</tt> collection.
+ */
+public class LogbookLogsTest {
+
+    private static final int LOGS = 2000;
+    private static final String LOGBOOK = "logbook-logs-test";
+    private static int built;
+
+    @BeforeClass
+    public static void createLogbook() throws CFException {
+        Assume.assumeTrue(TestDatabase.isConfigured());
+        TestDatabase.open();
+        LogbookManager.create(LOGBOOK, "test");
+        List<Log> logs = new ArrayList<Log>(LOGS);
+        for (int i = 0; i < LOGS; i++) {
+            logs.add(log("Log " + i));
+        }
+        LogManager.createAll(logs);
+        JpaHelper.getServerSession(JPAUtil.getEntityManagerFactory()).getDescriptor(Log.class)
+                .getEventManager().addListener(new DescriptorEventAdapter() {
+
+            @Override
+            public void postBuild(DescriptorEvent event) {
+                built++;
+            }
+        });
+    }
+
+    private static Log log(String description) {
+        Log log = new Log();
+        log.setOwner("test");
+        log.setSource("127.0.0.1");
+        log.setDescription(description);
+        log.setLevel(Level.Info);
+        log.addLogbook(new Logbook(LOGBOOK, "test"));
+        return log;
+    }
+
+    @Test
+    public void createDoesNotLoadLogbookLogs() throws CFException {
+        JPAUtil.getEntityManagerFactory().getCache().evictAll();
+        built = 0;
+        Log created = LogManager.create(log("One more"));
+        assertNotNull(created.getId());
+        assertEquals(0, built);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import com.googlecode.flyway.core.Flyway;
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Hashtable;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+import javax.sql.DataSource;
+
+/**
+ * MySQL database of the tests that need one, given by the
+ * <tt>olog.test.db.url</tt>, <tt>olog.test.db.user</tt> and
+ * <tt>olog.test.db.password</tt> system properties. The schema is dropped
+ * and migrated with the service migrations, so the url must name a scratch
+ * database: one whose name contains "test", anything else is refused before
+ * it is touched. The data source is bound to <tt>jdbc/olog</tt> in a JNDI
+ * context of its own, which DbConnection and JPAUtil then use.
+ */
+public class TestDatabase implements InitialContextFactory {
+
+    private static DataSource dataSource;
+
+    /**
+     * @return true if a test database is configured
+     */
+    public static boolean isConfigured() {
+        return System.getProperty("olog.test.db.url") != null;
+    }
+
+    /**
+     * Cleans and migrates the test database on first use.
+     *
+     * @return data source of the test database
+     */
+    public static synchronized DataSource open() {
+        if (dataSource == null) {
+            MysqlDataSource ds = new MysqlDataSource();
+            ds.setURL(System.getProperty("olog.test.db.url"));
+            ds.setUser(System.getProperty("olog.test.db.user", "olog"));
+            ds.setPassword(System.getProperty("olog.test.db.password", ""));
+            String schema = schema(ds);
+            if (!schema.toLowerCase().contains("test")) {
+                throw new IllegalStateException("Refusing to clean database " + schema
+                        + ": the name of a test database must contain \"test\"");
+            }
+            Flyway flyway = new Flyway();
+            flyway.setDataSource(ds);
+            flyway.clean();
+            flyway.migrate();
+            System.setProperty(Context.INITIAL_CONTEXT_FACTORY, TestDatabase.class.getName());
+            dataSource = ds;
+        }
+        return dataSource;
+    }
+
+    private static String schema(DataSource ds) {
+        try {
+            Connection con = ds.getConnection();
+            try {
+                String schema = con.getCatalog();
+                return schema != null ? schema : "";
+            } finally {
+                con.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                        if (method.getName().equals("lookup")) {
+                            String name = args[0].toString();
+                            if (name.endsWith("jdbc/olog")) {
+                                return dataSource;
+                            }
+                            throw new NameNotFoundException(name);
+                        } else if (method.getName().equals("close")) {
+                            return null;
+                        }
+                        throw new OperationNotSupportedException(method.getName());
+                    }
+                });
+    }
+}